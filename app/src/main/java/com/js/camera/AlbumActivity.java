@@ -53,6 +53,7 @@ public class AlbumActivity extends Activity implements Observer {
     trace("onResume");
     super.onResume();
     mPhotoFile.addObserver(this);
+    mPhotoFile.resumeAging();
     rebuildAlbumIfPhotosAvailable();
   }
 
@@ -133,6 +134,11 @@ public class AlbumActivity extends Activity implements Observer {
       case StateChanged:
         rebuildAlbumIfPhotosAvailable();
         break;
+      case PhotoAged:
+        // Reload the thumbnails, so the aged one is displayed
+        if (mGridView != null && mGridView.getAdapter() != null)
+          ((ImageAdapter) mGridView.getAdapter()).notifyDataSetChanged();
+        break;
     }
   }
 
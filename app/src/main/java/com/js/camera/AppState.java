@@ -2,12 +2,17 @@ package com.js.camera;
 
 import android.content.Context;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 
 import com.js.android.AppPreferences;
 import com.js.android.UITools;
 
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import static com.js.basic.Tools.*;
 import static com.js.android.AndroidTools.*;
 
@@ -17,6 +22,34 @@ import static com.js.android.AndroidTools.*;
  */
 public class AppState {
 
+  /**
+   * The background thread pools.  CPU is for image processing (decoding, aging,
+   * encoding); IO is for file operations
+   */
+  public enum BgndPool {
+    CPU,
+    IO,
+  }
+
+  /**
+   * Priority classes for background events, highest first.  Queued events of a
+   * higher priority are run before those of lower; events of equal priority are
+   * run in the order they were posted
+   */
+  public enum Priority {
+    // Capturing a photo the user has just taken
+    CAPTURE,
+    // Producing something the user is currently looking at (e.g. a visible thumbnail)
+    VISIBLE,
+    // Producing something the user may soon look at
+    PREFETCH,
+    // Housekeeping that the user isn't waiting for
+    MAINTENANCE,
+  }
+
+  // Number of seconds an idle pool thread waits before terminating
+  private static final int POOL_KEEP_ALIVE_SECONDS = 30;
+
   public static void prepare(Context context) {
     if (prepared())
       return;
@@ -24,10 +57,12 @@ public class AppState {
     UITools.prepare(context);
     showFreeMemory(context, "Starting app");
     AppPreferences.prepare(context);
+    MemoryBudget.prepare(context);
     sUIThreadHandler = new Handler(Looper.getMainLooper());
-    HandlerThread handlerThread = new HandlerThread("Background handler thread");
-    handlerThread.start();
-    sBgndThreadHandler = new Handler(handlerThread.getLooper());
+    sBgndPools = new ThreadPoolExecutor[BgndPool.values().length];
+    sBgndPools[BgndPool.CPU.ordinal()] = buildPool(BgndPool.CPU,
+        Runtime.getRuntime().availableProcessors());
+    sBgndPools[BgndPool.IO.ordinal()] = buildPool(BgndPool.IO, 2);
   }
 
   private static boolean prepared() {
@@ -51,9 +86,139 @@ public class AppState {
     sUIThreadHandler.post(r);
   }
 
+  /**
+   * Post an event to the IO background pool
+   */
   public static void postBgndEvent(Runnable r) {
+    postBgndEvent(BgndPool.IO, r);
+  }
+
+  public static void postBgndEvent(BgndPool pool, Runnable r) {
+    postBgndEvent(pool, Priority.VISIBLE, r);
+  }
+
+  /**
+   * Post an event to a background pool
+   *
+   * @return the event actually queued, which can be passed to cancelBgndEvent()
+   */
+  public static Runnable postBgndEvent(BgndPool pool, Priority priority, Runnable r) {
+    assertPrepared();
+    Runnable event = new PrioritizedEvent(r, priority, sEventCounter.getAndIncrement());
+    sBgndPools[pool.ordinal()].execute(event);
+    return event;
+  }
+
+  /**
+   * Remove an event from a background pool's queue, if it hasn't started yet
+   *
+   * @param event value returned by postBgndEvent()
+   * @return true if event was removed
+   */
+  public static boolean cancelBgndEvent(BgndPool pool, Runnable event) {
+    assertPrepared();
+    return sBgndPools[pool.ordinal()].remove(event);
+  }
+
+  /**
+   * Post an event to the UI thread, to be run after a delay
+   */
+  public static void postUIEvent(Runnable r, int delayMs) {
+    assertPrepared();
+    sUIThreadHandler.postDelayed(r, delayMs);
+  }
+
+  /**
+   * Remove any pending posts of an event to the UI thread
+   */
+  public static void cancelUIEvent(Runnable r) {
     assertPrepared();
-    sBgndThreadHandler.post(r);
+    sUIThreadHandler.removeCallbacks(r);
+  }
+
+  /**
+   * Post an event to the IO background pool, to be run after a delay
+   */
+  public static void postBgndEvent(final Runnable r, int delayMs) {
+    assertPrepared();
+    sUIThreadHandler.postDelayed(new Runnable() {
+      @Override
+      public void run() {
+        postBgndEvent(r);
+      }
+    }, delayMs);
+  }
+
+  /**
+   * Set the maximum number of threads that a background pool will use
+   */
+  public static void setParallelism(BgndPool pool, int numThreads) {
+    assertPrepared();
+    if (numThreads < 1)
+      throw new IllegalArgumentException();
+    ThreadPoolExecutor executor = sBgndPools[pool.ordinal()];
+    // Adjust the sizes in an order that keeps core size <= maximum size
+    if (numThreads > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(numThreads);
+      executor.setCorePoolSize(numThreads);
+    } else {
+      executor.setCorePoolSize(numThreads);
+      executor.setMaximumPoolSize(numThreads);
+    }
+  }
+
+  public static int getParallelism(BgndPool pool) {
+    assertPrepared();
+    return sBgndPools[pool.ordinal()].getMaximumPoolSize();
+  }
+
+  private static ThreadPoolExecutor buildPool(final BgndPool pool, int numThreads) {
+    ThreadFactory factory = new ThreadFactory() {
+      @Override
+      public synchronized Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Background " + pool + " thread #" + mThreadCount);
+        mThreadCount++;
+        return thread;
+      }
+
+      private int mThreadCount = 1;
+    };
+    // Since the queue is unbounded, the pool never grows beyond its core size;
+    // so core and maximum sizes are kept equal
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(numThreads, numThreads,
+        POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), factory);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Wrapper for events posted to background pools, ordered by priority, then by
+   * the order in which they were posted
+   */
+  private static class PrioritizedEvent implements Runnable, Comparable<PrioritizedEvent> {
+
+    public PrioritizedEvent(Runnable runnable, Priority priority, long sequenceNumber) {
+      mRunnable = runnable;
+      mPriority = priority;
+      mSequenceNumber = sequenceNumber;
+    }
+
+    @Override
+    public void run() {
+      mRunnable.run();
+    }
+
+    @Override
+    public int compareTo(PrioritizedEvent other) {
+      int diff = mPriority.ordinal() - other.mPriority.ordinal();
+      if (diff == 0)
+        diff = Long.signum(mSequenceNumber - other.mSequenceNumber);
+      return diff;
+    }
+
+    private final Runnable mRunnable;
+    private final Priority mPriority;
+    private final long mSequenceNumber;
   }
 
   private static void constructPhotoFile(Context context) {
@@ -63,5 +228,6 @@ public class AppState {
 
   private static PhotoFile sPhotoFile;
   private static Handler sUIThreadHandler;
-  private static Handler sBgndThreadHandler;
+  private static ThreadPoolExecutor[] sBgndPools;
+  private static final AtomicLong sEventCounter = new AtomicLong();
 }
@@ -0,0 +1,236 @@
+package com.js.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of bitmaps and pixel buffers, so pipelines that repeatedly need
+ * intermediate bitmaps or buffers of the same sizes (capturing, aging, and
+ * generating thumbnails) can reuse them instead of generating garbage.
+ * <p/>
+ * Bitmaps are matched by size (all are mutable ARGB_8888), and buffers by length.
+ * Bitmaps can also be reused when decoding JPEGs, where the API allows it.  The
+ * pool's memory usage is bounded (see MemoryBudget); when it's exceeded, the least
+ * recently pooled items are discarded.
+ * <p/>
+ * Thread safe.
+ */
+class BitmapPool {
+
+  public static synchronized BitmapPool sharedInstance() {
+    if (sSharedInstance == null)
+      sSharedInstance = new BitmapPool(MemoryBudget.bitmapPoolBytes());
+    return sSharedInstance;
+  }
+
+  public BitmapPool(long maxBytes) {
+    mMaxBytes = maxBytes;
+    mItems = new ArrayList<Object>();
+  }
+
+  /**
+   * Get a mutable ARGB_8888 bitmap, cleared to transparent
+   */
+  public Bitmap getBitmap(int width, int height) {
+    Bitmap bitmap = null;
+    synchronized (this) {
+      for (int i = mItems.size() - 1; i >= 0; i--) {
+        Object item = mItems.get(i);
+        if (item instanceof Bitmap) {
+          Bitmap candidate = (Bitmap) item;
+          if (candidate.getWidth() == width && candidate.getHeight() == height) {
+            bitmap = (Bitmap) remove(i);
+            break;
+          }
+        }
+      }
+    }
+    if (bitmap == null)
+      return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    bitmap.eraseColor(0);
+    return bitmap;
+  }
+
+  /**
+   * Return a bitmap to the pool; if it can't be pooled, it's recycled.  The
+   * caller must not use the bitmap afterward
+   *
+   * @param bitmap bitmap, or null
+   */
+  public void recycle(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled())
+      return;
+    if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+      bitmap.recycle();
+      return;
+    }
+    add(bitmap);
+  }
+
+  /**
+   * Decode a JPEG, reusing a pooled bitmap for its pixels if possible.  The
+   * decoded bitmap is mutable
+   *
+   * @param options decoding options, or null
+   */
+  public Bitmap decodeByteArray(byte[] data, BitmapFactory.Options options) {
+    if (options == null)
+      options = new BitmapFactory.Options();
+    options.inMutable = true;
+    Bitmap reusable = null;
+    if (options.inPreferredConfig == Bitmap.Config.ARGB_8888) {
+      BitmapFactory.Options bounds = new BitmapFactory.Options();
+      bounds.inJustDecodeBounds = true;
+      bounds.inSampleSize = options.inSampleSize;
+      // (the bounds reported are those of the subsampled image)
+      BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+      if (bounds.outWidth > 0)
+        reusable = getBitmapForDecoding(bounds.outWidth, bounds.outHeight,
+            Math.max(1, options.inSampleSize));
+    }
+    if (reusable != null) {
+      options.inBitmap = reusable;
+      try {
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap != null)
+          return bitmap;
+      } catch (IllegalArgumentException e) {
+        // The bitmap can't be reused for this image after all
+      }
+      options.inBitmap = null;
+      recycle(reusable);
+    }
+    return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+  }
+
+  /**
+   * Get a buffer of ints
+   *
+   * @param minLength minimum length of buffer; it may be longer
+   */
+  public int[] getIntBuffer(int minLength) {
+    int[] buffer = (int[]) takeBuffer(int[].class, minLength);
+    if (buffer == null)
+      buffer = new int[minLength];
+    return buffer;
+  }
+
+  /**
+   * Get a buffer of bytes
+   *
+   * @param minLength minimum length of buffer; it may be longer
+   */
+  public byte[] getByteBuffer(int minLength) {
+    byte[] buffer = (byte[]) takeBuffer(byte[].class, minLength);
+    if (buffer == null)
+      buffer = new byte[minLength];
+    return buffer;
+  }
+
+  /**
+   * Return a buffer to the pool
+   *
+   * @param buffer buffer, or null
+   */
+  public void recycle(int[] buffer) {
+    if (buffer != null)
+      add(buffer);
+  }
+
+  /**
+   * Return a buffer to the pool
+   *
+   * @param buffer buffer, or null
+   */
+  public void recycle(byte[] buffer) {
+    if (buffer != null)
+      add(buffer);
+  }
+
+  public synchronized void evictAll() {
+    while (!mItems.isEmpty())
+      discard(remove(0));
+  }
+
+  /**
+   * Find a pooled bitmap that can be reused to decode an image.  It must be exactly
+   * the size of the decoded image; and before KitKat, the image must not be subsampled
+   */
+  private synchronized Bitmap getBitmapForDecoding(int width, int height, int sampleSize) {
+    if (sampleSize != 1 && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+      return null;
+    for (int i = mItems.size() - 1; i >= 0; i--) {
+      Object item = mItems.get(i);
+      if (item instanceof Bitmap && ((Bitmap) item).getWidth() == width
+          && ((Bitmap) item).getHeight() == height)
+        return (Bitmap) remove(i);
+    }
+    return null;
+  }
+
+  /**
+   * Find the shortest pooled buffer of a particular type whose length is at least
+   * minLength, but not excessively larger
+   */
+  private synchronized Object takeBuffer(Class<?> type, int minLength) {
+    int bestIndex = -1;
+    int bestLength = Integer.MAX_VALUE;
+    for (int i = mItems.size() - 1; i >= 0; i--) {
+      Object item = mItems.get(i);
+      if (item.getClass() != type)
+        continue;
+      int length = java.lang.reflect.Array.getLength(item);
+      if (length >= minLength && length <= minLength * 2L && length < bestLength) {
+        bestIndex = i;
+        bestLength = length;
+      }
+    }
+    if (bestIndex < 0)
+      return null;
+    return remove(bestIndex);
+  }
+
+  private synchronized void add(Object item) {
+    long bytes = sizeOf(item);
+    if (bytes > mMaxBytes) {
+      discard(item);
+      return;
+    }
+    // Discard the least recently pooled items until there's room
+    while (mBytes + bytes > mMaxBytes)
+      discard(remove(0));
+    mItems.add(item);
+    mBytes += bytes;
+  }
+
+  private Object remove(int index) {
+    Object item = mItems.remove(index);
+    mBytes -= sizeOf(item);
+    return item;
+  }
+
+  private static void discard(Object item) {
+    if (item instanceof Bitmap)
+      ((Bitmap) item).recycle();
+  }
+
+  private static long sizeOf(Object item) {
+    if (item instanceof Bitmap) {
+      Bitmap bitmap = (Bitmap) item;
+      return bitmap.getRowBytes() * (long) bitmap.getHeight();
+    }
+    if (item instanceof int[])
+      return ((int[]) item).length * 4L;
+    return ((byte[]) item).length;
+  }
+
+  private static BitmapPool sSharedInstance;
+
+  private final long mMaxBytes;
+  // Pooled items, from least to most recently pooled
+  private final ArrayList<Object> mItems;
+  private long mBytes;
+}
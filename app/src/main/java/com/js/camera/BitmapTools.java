@@ -2,7 +2,9 @@ package com.js.camera;
 
 import android.content.pm.ActivityInfo;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 
 import com.js.basic.IPoint;
 import com.js.basic.MyMath;
@@ -18,6 +20,31 @@ public class BitmapTools {
   public static final int ORIENTATION_LANDSCAPE = ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE;
   public static final int ORIENTATION_PORTRAIT = ActivityInfo.SCREEN_ORIENTATION_PORTRAIT;
 
+  // Frames with fewer pixels than this are processed by the serial versions of
+  // the kernels, since splitting them up would cost more than it saves
+  private static final int PARALLEL_KERNEL_MIN_PIXELS = 256 * 256;
+
+  /**
+   * Methods of converting between RGB and YUV; both produce identical results
+   */
+  public enum ConversionMode {
+    // Evaluate the conversion formulae for each pixel
+    ARITHMETIC,
+    // Sum precomputed per-component contributions, and clamp by table lookup
+    LOOKUP_TABLE,
+  }
+
+  /**
+   * Select the method used by the YUV encode and decode kernels
+   */
+  public static void setConversionMode(ConversionMode mode) {
+    sConversionMode = mode;
+  }
+
+  public static ConversionMode getConversionMode() {
+    return sConversionMode;
+  }
+
   /**
    * Decode YUV 4:2:0 bitmap to ARGB_8888 format.
    * Note that a (fully opaque) alpha channel is added;
@@ -27,15 +54,56 @@ public class BitmapTools {
    * @return argb data
    */
   public static int[] decodeYUV420SP(int[] argb, byte[] yuv, IPoint size) {
-    doNothing();
     int width = size.x;
     int height = size.y;
-    int frameSize = width * height;
     if (argb == null)
-      argb = new int[frameSize * 2];
+      argb = new int[width * height];
+    decodeYUV420SPRows(argb, yuv, width, height, 0, height);
+    return argb;
+  }
+
+  /**
+   * Parallel version of decodeYUV420SP(); uses the serial version for small frames
+   */
+  public static int[] decodeYUV420SPParallel(int[] argb, final byte[] yuv, IPoint size) {
+    final int width = size.x;
+    final int height = size.y;
+    if (argb == null)
+      argb = new int[width * height];
+    if (!useParallelKernel(width, height))
+      return decodeYUV420SP(argb, yuv, size);
+    final int[] output = argb;
+    RowBandExecutor.run(height, 2, new RowBandExecutor.Kernel() {
+      @Override
+      public void processRows(int startRow, int endRow) {
+        decodeYUV420SPRows(output, yuv, width, height, startRow, endRow);
+      }
+    });
+    return argb;
+  }
 
-    int uvpBase = frameSize;
-    for (int j = 0, yp = 0; j < height; j++) {
+  /**
+   * Determine if a frame is large enough (and suitably sized) to be processed by
+   * the parallel versions of the kernels
+   */
+  private static boolean useParallelKernel(int width, int height) {
+    return width * height >= PARALLEL_KERNEL_MIN_PIXELS && (width % 2) == 0
+        && RowBandExecutor.getParallelism() > 1;
+  }
+
+  /**
+   * Decode a band of rows; startRow must be even
+   */
+  private static void decodeYUV420SPRows(int[] argb, byte[] yuv, int width, int height,
+                                         int startRow, int endRow) {
+    if (sConversionMode == ConversionMode.LOOKUP_TABLE) {
+      decodeYUV420SPRowsLUT(argb, yuv, width, height, startRow, endRow);
+      return;
+    }
+    int frameSize = width * height;
+    // Each pair of rows shares a row of interleaved chroma samples
+    int uvpBase = frameSize + (startRow >> 1) * width;
+    for (int j = startRow, yp = startRow * width; j < endRow; j++) {
       int u = 0;
       int v = 0;
       int uvp = uvpBase;
@@ -64,7 +132,45 @@ public class BitmapTools {
       if ((j & 1) != 0)
         uvpBase += width;
     }
-    return argb;
+  }
+
+  /**
+   * Table-driven version of decodeYUV420SPRows()
+   */
+  private static void decodeYUV420SPRowsLUT(int[] argb, byte[] yuv, int width, int height,
+                                            int startRow, int endRow) {
+    final int[] yTable = ConversionTables.DECODE_Y;
+    final int[] rvTable = ConversionTables.DECODE_RV;
+    final int[] gvTable = ConversionTables.DECODE_GV;
+    final int[] guTable = ConversionTables.DECODE_GU;
+    final int[] buTable = ConversionTables.DECODE_BU;
+    final int[] clampTable = ConversionTables.DECODE_CLAMP;
+    final int clampOffset = ConversionTables.DECODE_CLAMP_OFFSET;
+
+    int frameSize = width * height;
+    int uvpBase = frameSize + (startRow >> 1) * width;
+    for (int j = startRow, yp = startRow * width; j < endRow; j++) {
+      int rChroma = 0;
+      int gChroma = 0;
+      int bChroma = 0;
+      int uvp = uvpBase;
+      for (int i = 0; i < width; i++, yp++) {
+        int y1192 = yTable[0xff & yuv[yp]];
+        if ((i & 1) == 0) {
+          int v = 0xff & yuv[uvp++];
+          int u = 0xff & yuv[uvp++];
+          rChroma = rvTable[v];
+          gChroma = gvTable[v] + guTable[u];
+          bChroma = buTable[u];
+        }
+        int r = clampTable[((y1192 + rChroma) >> 10) + clampOffset];
+        int g = clampTable[((y1192 + gChroma) >> 10) + clampOffset];
+        int b = clampTable[((y1192 + bChroma) >> 10) + clampOffset];
+        argb[yp] = 0xff000000 | (r << 16) | (g << 8) | b;
+      }
+      if ((j & 1) != 0)
+        uvpBase += width;
+    }
   }
 
   /**
@@ -123,6 +229,69 @@ public class BitmapTools {
     }
   }
 
+  /**
+   * Scale a bitmap to fit a target size (preserving its aspect ratio), then rotate
+   * and optionally flip it.  These are combined into a single transformation, so the
+   * output is produced in a single filtered pass
+   *
+   * @param fitSize        size to fit the bitmap within, before it's rotated
+   * @param rotationToApply rotation, in degrees; must be a multiple of 90
+   * @param flipHorizontal if true, the rotated bitmap is mirrored left to right
+   * @param destination    bitmap to draw into (e.g., one from a BitmapPool), or null to
+   *                       create one; its size must be that returned by
+   *                       calcTransformedSize()
+   * @return transformed bitmap; if no destination was given and no transformation
+   * was necessary, the original
+   */
+  public static Bitmap transformBitmap(Bitmap bitmap, IPoint fitSize, int rotationToApply,
+                                       boolean flipHorizontal, Bitmap destination) {
+    IPoint scaledSize = calcScaledSize(size(bitmap), fitSize);
+    IPoint outputSize = calcTransformedSize(size(bitmap), fitSize, rotationToApply);
+
+    Matrix matrix = MyMath.calcRectFitRectTransform(
+        new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()),
+        new Rect(0, 0, scaledSize.x, scaledSize.y), false);
+    // Rotate about the center of the scaled bitmap, then move that center to the
+    // center of the output
+    matrix.postRotate(rotationToApply, scaledSize.x / 2.0f, scaledSize.y / 2.0f);
+    matrix.postTranslate((outputSize.x - scaledSize.x) / 2.0f,
+        (outputSize.y - scaledSize.y) / 2.0f);
+    if (flipHorizontal)
+      matrix.postScale(-1, 1, outputSize.x / 2.0f, outputSize.y / 2.0f);
+
+    if (destination == null) {
+      if (matrix.isIdentity())
+        return bitmap;
+      destination = Bitmap.createBitmap(outputSize.x, outputSize.y, Bitmap.Config.ARGB_8888);
+    } else if (destination.getWidth() != outputSize.x
+        || destination.getHeight() != outputSize.y) {
+      throw new IllegalArgumentException("destination size " + size(destination)
+          + " should be " + outputSize);
+    }
+    Canvas canvas = new Canvas(destination);
+    canvas.drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+    return destination;
+  }
+
+  /**
+   * Determine the size of the bitmap produced by transformBitmap()
+   */
+  public static IPoint calcTransformedSize(IPoint bitmapSize, IPoint fitSize,
+                                           int rotationToApply) {
+    if (rotationToApply % 90 != 0)
+      throw new IllegalArgumentException("unsupported rotation " + rotationToApply);
+    IPoint size = calcScaledSize(bitmapSize, fitSize);
+    if (rotationToApply % 180 != 0)
+      size = new IPoint(size.y, size.x);
+    return size;
+  }
+
+  private static IPoint calcScaledSize(IPoint bitmapSize, IPoint fitSize) {
+    float scale = Math.min(fitSize.x / (float) bitmapSize.x, fitSize.y / (float) bitmapSize.y);
+    return new IPoint(Math.max(1, Math.round(bitmapSize.x * scale)),
+        Math.max(1, Math.round(bitmapSize.y * scale)));
+  }
+
   public static int getOrientation(Bitmap bitmap) {
     return (bitmap.getWidth() > bitmap.getHeight()) ? ORIENTATION_LANDSCAPE : ORIENTATION_PORTRAIT;
   }
@@ -135,7 +304,17 @@ public class BitmapTools {
    * @return yuv
    */
   public static byte[] getYUV420SP(Bitmap bitmap, byte[] yuv) {
+    return getYUV420SP(bitmap, yuv, false);
+  }
 
+  /**
+   * Parallel version of getYUV420SP(); uses the serial version for small bitmaps
+   */
+  public static byte[] getYUV420SPParallel(Bitmap bitmap, byte[] yuv) {
+    return getYUV420SP(bitmap, yuv, true);
+  }
+
+  private static byte[] getYUV420SP(Bitmap bitmap, byte[] yuv, boolean parallel) {
     int width = bitmap.getWidth();
     int height = bitmap.getHeight();
     if ((width % 2) != 0 || (height % 2) != 0)
@@ -150,20 +329,52 @@ public class BitmapTools {
       yuv = new byte[yuvLength];
     else if (yuv.length != yuvLength)
       throw new IllegalArgumentException("yuv length problem");
-    encodeYUV420SP(yuv, argb, width, height);
+    encodeYUV420SP(yuv, argb, width, height, parallel);
 
     return yuv;
   }
 
-  private static void encodeYUV420SP(byte[] yuv420sp, int[] argb, int width, int height) {
+  /**
+   * Encode ARGB pixels to YUV (NV21)
+   *
+   * @param parallel if true, and frame is large enough, uses the parallel kernel
+   */
+  static void encodeYUV420SP(byte[] yuv420sp, int[] argb, int width, int height,
+                             boolean parallel) {
+    if (parallel && useParallelKernel(width, height))
+      encodeYUV420SPParallel(yuv420sp, argb, width, height);
+    else
+      encodeYUV420SPRows(yuv420sp, argb, width, height, 0, height);
+  }
+
+  private static void encodeYUV420SPParallel(final byte[] yuv420sp, final int[] argb,
+                                             final int width, final int height) {
+    RowBandExecutor.run(height, 2, new RowBandExecutor.Kernel() {
+      @Override
+      public void processRows(int startRow, int endRow) {
+        encodeYUV420SPRows(yuv420sp, argb, width, height, startRow, endRow);
+      }
+    });
+  }
+
+  /**
+   * Encode a band of rows; startRow must be even, and width must be even unless
+   * startRow is zero
+   */
+  private static void encodeYUV420SPRows(byte[] yuv420sp, int[] argb, int width, int height,
+                                         int startRow, int endRow) {
+    if (sConversionMode == ConversionMode.LOOKUP_TABLE) {
+      encodeYUV420SPRowsLUT(yuv420sp, argb, width, height, startRow, endRow);
+      return;
+    }
     final int frameSize = width * height;
 
-    int yIndex = 0;
-    int uvIndex = frameSize;
+    int yIndex = startRow * width;
+    int uvIndex = frameSize + (startRow >> 1) * width;
 
     int R, G, B, Y, U, V;
-    int index = 0;
-    for (int j = 0; j < height; j++) {
+    int index = startRow * width;
+    for (int j = startRow; j < endRow; j++) {
       for (int i = 0; i < width; i++) {
 
         R = (argb[index] & 0xff0000) >> 16;
@@ -187,19 +398,137 @@ public class BitmapTools {
     }
   }
 
+  /**
+   * Table-driven version of encodeYUV420SPRows(); also skips calculating the
+   * chroma of pixels that aren't sampled
+   */
+  private static void encodeYUV420SPRowsLUT(byte[] yuv420sp, int[] argb, int width, int height,
+                                            int startRow, int endRow) {
+    final int[] yrTable = ConversionTables.ENCODE_YR;
+    final int[] ygTable = ConversionTables.ENCODE_YG;
+    final int[] ybTable = ConversionTables.ENCODE_YB;
+    final int[] urTable = ConversionTables.ENCODE_UR;
+    final int[] ugTable = ConversionTables.ENCODE_UG;
+    final int[] ubTable = ConversionTables.ENCODE_UB;
+    final int[] vrTable = ConversionTables.ENCODE_VR;
+    final int[] vgTable = ConversionTables.ENCODE_VG;
+    final int[] vbTable = ConversionTables.ENCODE_VB;
+
+    final int frameSize = width * height;
+    int yIndex = startRow * width;
+    int uvIndex = frameSize + (startRow >> 1) * width;
+    int index = startRow * width;
+    for (int j = startRow; j < endRow; j++) {
+      boolean chromaRow = (j % 2 == 0);
+      for (int i = 0; i < width; i++) {
+        int c = argb[index];
+        int R = (c & 0xff0000) >> 16;
+        int G = (c & 0xff00) >> 8;
+        int B = (c & 0xff);
+
+        // These sums always lie within 0...255, so no clamping is required
+        yuv420sp[yIndex++] = (byte) ((yrTable[R] + ygTable[G] + ybTable[B]) >> 8);
+        if (chromaRow && index % 2 == 0) {
+          yuv420sp[uvIndex++] = (byte) ((vrTable[R] + vgTable[G] + vbTable[B]) >> 8);
+          yuv420sp[uvIndex++] = (byte) ((urTable[R] + ugTable[G] + ubTable[B]) >> 8);
+        }
+        index++;
+      }
+    }
+  }
+
+  /**
+   * Lookup tables for the YUV conversions; constructed when first used
+   */
+  private static class ConversionTables {
+
+    // Decoding: contributions to the 18-bit fixed point R, G, B values
+    static final int[] DECODE_Y = new int[256];
+    static final int[] DECODE_RV = new int[256];
+    static final int[] DECODE_GV = new int[256];
+    static final int[] DECODE_GU = new int[256];
+    static final int[] DECODE_BU = new int[256];
+
+    // Maps (fixed point value >> 10) + DECODE_CLAMP_OFFSET to the clamped 8-bit value;
+    // shifting before clamping gives the same result as clamping before shifting.
+    // The shifted values lie within -259...534
+    static final int DECODE_CLAMP_OFFSET = 512;
+    static final int[] DECODE_CLAMP = new int[1280];
+
+    // Encoding: contributions to the Y, U, V values, shifted left 8 bits; the
+    // rounding and offset terms are folded into the blue tables
+    static final int[] ENCODE_YR = new int[256];
+    static final int[] ENCODE_YG = new int[256];
+    static final int[] ENCODE_YB = new int[256];
+    static final int[] ENCODE_UR = new int[256];
+    static final int[] ENCODE_UG = new int[256];
+    static final int[] ENCODE_UB = new int[256];
+    static final int[] ENCODE_VR = new int[256];
+    static final int[] ENCODE_VG = new int[256];
+    static final int[] ENCODE_VB = new int[256];
+
+    static {
+      for (int i = 0; i < 256; i++) {
+        DECODE_Y[i] = 1192 * Math.max(0, i - 16);
+        int c = i - 128;
+        DECODE_RV[i] = 1634 * c;
+        DECODE_GV[i] = -833 * c;
+        DECODE_GU[i] = -400 * c;
+        DECODE_BU[i] = 2066 * c;
+
+        ENCODE_YR[i] = 66 * i;
+        ENCODE_YG[i] = 129 * i;
+        ENCODE_YB[i] = 25 * i + 128 + (16 << 8);
+        ENCODE_UR[i] = -38 * i;
+        ENCODE_UG[i] = -74 * i;
+        ENCODE_UB[i] = 112 * i + 128 + (128 << 8);
+        ENCODE_VR[i] = 112 * i;
+        ENCODE_VG[i] = -94 * i;
+        ENCODE_VB[i] = -18 * i + 128 + (128 << 8);
+      }
+      for (int i = 0; i < DECODE_CLAMP.length; i++)
+        DECODE_CLAMP[i] = Math.min(255, Math.max(0, i - DECODE_CLAMP_OFFSET));
+    }
+  }
+
   public static void scaleYUV420SP(byte[] yuv, IPoint size, float yScale, float uScale, float vScale) {
+    scaleYUV420SPRows(yuv, size.x, size.y, (int) (yScale * 256.0f), (int) (uScale * 256.0f),
+        (int) (vScale * 256.0f), 0, size.y);
+  }
 
-    int yScaleI = (int) (yScale * 256.0f);
-    int uScaleI = (int) (uScale * 256.0f);
-    int vScaleI = (int) (vScale * 256.0f);
+  /**
+   * Parallel version of scaleYUV420SP(); uses the serial version for small frames
+   */
+  public static void scaleYUV420SPParallel(final byte[] yuv, IPoint size, float yScale,
+                                           float uScale, float vScale) {
+    final int width = size.x;
+    final int height = size.y;
+    if (!useParallelKernel(width, height)) {
+      scaleYUV420SP(yuv, size, yScale, uScale, vScale);
+      return;
+    }
+    final int yScaleI = (int) (yScale * 256.0f);
+    final int uScaleI = (int) (uScale * 256.0f);
+    final int vScaleI = (int) (vScale * 256.0f);
+    RowBandExecutor.run(height, 2, new RowBandExecutor.Kernel() {
+      @Override
+      public void processRows(int startRow, int endRow) {
+        scaleYUV420SPRows(yuv, width, height, yScaleI, uScaleI, vScaleI, startRow, endRow);
+      }
+    });
+  }
 
-    int height = size.y;
-    int width = size.x;
+  /**
+   * Scale a band of rows; startRow must be even, and width must be even unless
+   * startRow is zero
+   */
+  private static void scaleYUV420SPRows(byte[] yuv, int width, int height, int yScaleI,
+                                        int uScaleI, int vScaleI, int startRow, int endRow) {
     final int frameSize = width * height;
-    int yIndex = 0;
-    int uvIndex = frameSize;
-    int index = 0;
-    for (int j = 0; j < height; j++) {
+    int yIndex = startRow * width;
+    int uvIndex = frameSize + (startRow >> 1) * width;
+    int index = startRow * width;
+    for (int j = startRow; j < endRow; j++) {
       for (int i = 0; i < width; i++) {
         int y = (((int) yuv[yIndex]) & 0xff) - 128;
         if (yScaleI != 256) {
@@ -226,6 +555,133 @@ public class BitmapTools {
     }
   }
 
+  /**
+   * Desaturate a bitmap by scaling its chroma; see bleachARGB()
+   *
+   * @param pixels buffer to hold the bitmap's pixels; if null or too small, creates one
+   * @return bitmap containing the result; this is the original if it was mutable,
+   * otherwise a new one (and the original is recycled)
+   */
+  public static Bitmap bleachBitmap(Bitmap bitmap, float chromaScale, int[] pixels) {
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    if (pixels == null || pixels.length < width * height)
+      pixels = new int[width * height];
+    bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+    bleachARGBParallel(pixels, width, height, chromaScale);
+    if (bitmap.isMutable()) {
+      bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+    } else {
+      bitmap.recycle();
+      bitmap = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+    return bitmap;
+  }
+
+  /**
+   * Desaturate ARGB_8888 pixels in place, by scaling their chroma.  Produces the
+   * same result as converting to YUV 4:2:0 with getYUV420SP(), scaling U and V with
+   * scaleYUV420SP(), and converting back with decodeYUV420SP(); but in a single
+   * pass, without allocating any intermediate buffers
+   *
+   * @param argb   pixels, in rows of width pixels
+   * @param width  width; must be multiple of 2
+   * @param height height; must be multiple of 2
+   */
+  public static void bleachARGB(int[] argb, int width, int height, float chromaScale) {
+    if ((width % 2) != 0 || (height % 2) != 0)
+      throw new IllegalArgumentException("Dimensions must be multiple of 2");
+    if (argb.length < width * height)
+      throw new IllegalArgumentException("argb length problem");
+    bleachARGBRows(argb, width, (int) (chromaScale * 256.0f), 0, height);
+  }
+
+  /**
+   * Parallel version of bleachARGB(); uses the serial version for small frames
+   */
+  public static void bleachARGBParallel(final int[] argb, final int width, int height,
+                                        float chromaScale) {
+    if (!useParallelKernel(width, height)) {
+      bleachARGB(argb, width, height, chromaScale);
+      return;
+    }
+    if ((height % 2) != 0)
+      throw new IllegalArgumentException("Dimensions must be multiple of 2");
+    if (argb.length < width * height)
+      throw new IllegalArgumentException("argb length problem");
+    final int scaleI = (int) (chromaScale * 256.0f);
+    RowBandExecutor.run(height, 2, new RowBandExecutor.Kernel() {
+      @Override
+      public void processRows(int startRow, int endRow) {
+        bleachARGBRows(argb, width, scaleI, startRow, endRow);
+      }
+    });
+  }
+
+  /**
+   * Bleach a band of rows; startRow and endRow must be even
+   */
+  private static void bleachARGBRows(int[] argb, int width, int scaleI, int startRow, int endRow) {
+    for (int j = startRow; j < endRow; j += 2) {
+      int rowStart = j * width;
+      for (int i = 0; i < width; i += 2) {
+        int p = rowStart + i;
+
+        // Each 2x2 block shares the chroma sampled from its top left pixel
+        int c = argb[p];
+        int R = (c & 0xff0000) >> 16;
+        int G = (c & 0xff00) >> 8;
+        int B = (c & 0xff);
+        int U = ((-38 * R - 74 * G + 112 * B + 128) >> 8) + 128;
+        int V = ((112 * R - 94 * G - 18 * B + 128) >> 8) + 128;
+        U = ((U < 0) ? 0 : ((U > 255) ? 255 : U)) - 128;
+        V = ((V < 0) ? 0 : ((V > 255) ? 255 : V)) - 128;
+        int u = (U * scaleI) >> 8;
+        u = (u < -128) ? -128 : ((u > 127) ? 127 : u);
+        int v = (V * scaleI) >> 8;
+        v = (v < -128) ? -128 : ((v > 127) ? 127 : v);
+
+        int rChroma = 1634 * v;
+        int gChroma = -833 * v - 400 * u;
+        int bChroma = 2066 * u;
+
+        argb[p] = bleachPixel(c, rChroma, gChroma, bChroma);
+        argb[p + 1] = bleachPixel(argb[p + 1], rChroma, gChroma, bChroma);
+        argb[p + width] = bleachPixel(argb[p + width], rChroma, gChroma, bChroma);
+        argb[p + width + 1] = bleachPixel(argb[p + width + 1], rChroma, gChroma, bChroma);
+      }
+    }
+  }
+
+  /**
+   * Replace a pixel's chroma, preserving its luma
+   */
+  private static int bleachPixel(int c, int rChroma, int gChroma, int bChroma) {
+    int R = (c & 0xff0000) >> 16;
+    int G = (c & 0xff00) >> 8;
+    int B = (c & 0xff);
+    int Y = ((66 * R + 129 * G + 25 * B + 128) >> 8) + 16;
+    Y = (Y < 0) ? 0 : ((Y > 255) ? 255 : Y);
+
+    int y = Y - 16;
+    if (y < 0) y = 0;
+    int y1192 = 1192 * y;
+    int r = y1192 + rChroma;
+    int g = y1192 + gChroma;
+    int b = y1192 + bChroma;
+
+    if (r < 0) r = 0;
+    else if (r > 262143) r = 262143;
+    if (g < 0) g = 0;
+    else if (g > 262143) g = 262143;
+    if (b < 0) b = 0;
+    else if (b > 262143) b = 262143;
+
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+
+  private static volatile ConversionMode sConversionMode = ConversionMode.ARITHMETIC;
+
   public static IPoint size(Bitmap bitmap) {
     return new IPoint(bitmap.getWidth(), bitmap.getHeight());
   }
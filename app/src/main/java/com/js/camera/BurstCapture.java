@@ -0,0 +1,275 @@
+package com.js.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+
+import static com.js.basic.Tools.*;
+import static com.js.android.AndroidTools.*;
+
+/**
+ * Takes a burst of photos in quick succession.
+ * <p/>
+ * Each shot is in flight from when it's taken until the PhotoFile has created its
+ * photo; until then, its JPEG (and later, its decoded bitmap) occupies memory.  At
+ * most a fixed number of shots may be in flight; when that limit is reached, the
+ * burst pauses until one of them has been created, so the camera can't outpace
+ * the background processing and exhaust memory.
+ * <p/>
+ * The latency of each stage of each shot is recorded.
+ */
+class BurstCapture implements Observer {
+
+  public interface Listener {
+    /**
+     * Called when each shot of the burst has been captured (i.e., its JPEG has been
+     * stored), or when the burst has been cancelled and its shots taken so far have
+     * been captured
+     */
+    void burstCaptured(BurstCapture burst);
+  }
+
+  public static final int DEFAULT_MAX_SHOTS_IN_FLIGHT = 2;
+
+  public BurstCapture(MyCamera camera, PhotoFile photoFile, int shotCount, int maxShotsInFlight,
+                      Listener listener) {
+    if (shotCount < 1 || maxShotsInFlight < 1)
+      throw new IllegalArgumentException();
+    mCamera = camera;
+    mPhotoFile = photoFile;
+    mShotCount = shotCount;
+    mMaxShotsInFlight = maxShotsInFlight;
+    mListener = listener;
+    mShots = new ArrayList<Shot>();
+  }
+
+  public void start() {
+    assertUIThread();
+    if (mStarted)
+      throw new IllegalStateException();
+    mStarted = true;
+    mPhotoFile.addObserver(this);
+    takeNextShot();
+  }
+
+  /**
+   * Stop taking shots; those already taken are still captured and created, except
+   * for one the camera is in the middle of taking, which is discarded
+   */
+  public void cancel() {
+    assertUIThread();
+    if (mCancelled)
+      return;
+    trace("cancel, shots taken " + mShots.size());
+    mCancelled = true;
+    if (mCurrentShot != null) {
+      mShots.remove(mCurrentShot);
+      mCurrentShot = null;
+    }
+    checkIfFinished();
+  }
+
+  /**
+   * Must be called (from the MyCamera.Listener) with each picture taken by the
+   * camera while the burst is active
+   */
+  public void pictureTaken(byte[] jpeg, int rotationToApply) {
+    assertUIThread();
+    Shot shot = mCurrentShot;
+    if (shot == null) {
+      warning("picture taken, but not by burst");
+      return;
+    }
+    if (!mPhotoFile.isOpen()) {
+      cancel();
+      return;
+    }
+    mCurrentShot = null;
+    shot.mPictureTime = System.currentTimeMillis();
+    mShotsInFlight++;
+    mPhotoFile.createPhoto(jpeg, rotationToApply, shot);
+    // The camera restarts its preview once this returns; take the next shot after that
+    AppState.postUIEvent(new Runnable() {
+      @Override
+      public void run() {
+        takeNextShot();
+      }
+    });
+  }
+
+  /**
+   * Get the shots taken so far
+   */
+  public List<Shot> getShots() {
+    return mShots;
+  }
+
+  public boolean isCancelled() {
+    return mCancelled;
+  }
+
+  public void setTrace(boolean state) {
+    mTrace = state;
+    if (state)
+      warning("Turning tracing on");
+  }
+
+  // Observer interface (for PhotoFile)
+  @Override
+  public void update(Observable observable, Object data) {
+    Object[] args = (Object[]) data;
+    PhotoFile.Event event = (PhotoFile.Event) args[0];
+    switch (event) {
+      case StateChanged:
+        if (!mPhotoFile.isOpen())
+          cancel();
+        break;
+      case PhotoCaptured: {
+        Shot shot = ourShot(args[2]);
+        if (shot == null)
+          break;
+        shot.mCapturedTime = System.currentTimeMillis();
+        mShotsCaptured++;
+        checkIfFinished();
+      }
+      break;
+      case PhotoCreated: {
+        Shot shot = ourShot(args[2]);
+        if (shot == null)
+          break;
+        shot.mCreatedTime = System.currentTimeMillis();
+        mShotsInFlight--;
+        mShotsCreated++;
+        trace("created " + shot);
+        takeNextShot();
+        checkIfFinished();
+      }
+      break;
+    }
+  }
+
+  private Shot ourShot(Object tag) {
+    if (!mShots.contains(tag))
+      return null;
+    return (Shot) tag;
+  }
+
+  private void takeNextShot() {
+    if (mCancelled || mShots.size() == mShotCount || mCurrentShot != null)
+      return;
+    if (mShotsInFlight >= mMaxShotsInFlight) {
+      trace("pausing; " + mShotsInFlight + " shots in flight");
+      return;
+    }
+    if (!mCamera.isOpen()) {
+      cancel();
+      return;
+    }
+    Shot shot = new Shot(mShots.size());
+    shot.mShutterTime = System.currentTimeMillis();
+    if (!mCamera.takePicture()) {
+      // Try again once the camera has finished with its current picture
+      AppState.postUIEvent(new Runnable() {
+        @Override
+        public void run() {
+          takeNextShot();
+        }
+      }, CAMERA_BUSY_RETRY_MS);
+      return;
+    }
+    mShots.add(shot);
+    mCurrentShot = shot;
+  }
+
+  private static final int CAMERA_BUSY_RETRY_MS = 50;
+
+  private void checkIfFinished() {
+    boolean allTaken = mCancelled || mShots.size() == mShotCount;
+    if (!allTaken || mCurrentShot != null)
+      return;
+    if (mShotsCaptured == mShots.size() && !mCapturedReported) {
+      mCapturedReported = true;
+      mListener.burstCaptured(this);
+    }
+    if (mShotsCreated == mShots.size()) {
+      mPhotoFile.deleteObserver(this);
+      trace("burst complete:\n" + d(mShots, true));
+    }
+  }
+
+  /**
+   * Timing information for a single shot of the burst; times are in milliseconds,
+   * or zero if the stage hasn't been reached
+   */
+  public static class Shot {
+
+    private Shot(int index) {
+      mIndex = index;
+    }
+
+    public int index() {
+      return mIndex;
+    }
+
+    /**
+     * Get the time from the shutter to the camera delivering the JPEG
+     */
+    public long pictureLatency() {
+      return latency(mPictureTime);
+    }
+
+    /**
+     * Get the time from the shutter to the JPEG being stored
+     */
+    public long captureLatency() {
+      return latency(mCapturedTime);
+    }
+
+    /**
+     * Get the time from the shutter to the photo being created
+     */
+    public long createLatency() {
+      return latency(mCreatedTime);
+    }
+
+    private long latency(long time) {
+      if (time == 0)
+        return 0;
+      return time - mShutterTime;
+    }
+
+    @Override
+    public String toString() {
+      return "Shot #" + mIndex + " picture:" + pictureLatency() + "ms captured:"
+          + captureLatency() + "ms created:" + createLatency() + "ms";
+    }
+
+    private final int mIndex;
+    private long mShutterTime;
+    private long mPictureTime;
+    private long mCapturedTime;
+    private long mCreatedTime;
+  }
+
+  private void trace(Object msg) {
+    if (mTrace)
+      pr("--    BurstCapture --: " + msg);
+  }
+
+  private final MyCamera mCamera;
+  private final PhotoFile mPhotoFile;
+  private final int mShotCount;
+  private final int mMaxShotsInFlight;
+  private final Listener mListener;
+  private final List<Shot> mShots;
+  // The shot whose picture the camera is taking, if any
+  private Shot mCurrentShot;
+  private int mShotsInFlight;
+  private int mShotsCaptured;
+  private int mShotsCreated;
+  private boolean mStarted;
+  private boolean mCancelled;
+  private boolean mCapturedReported;
+  private boolean mTrace;
+}
@@ -16,7 +16,6 @@ import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 
 import com.js.android.UITools;
-import com.js.basic.IPoint;
 
 import static com.js.basic.Tools.*;
 import static com.js.android.AndroidTools.*;
@@ -71,10 +70,13 @@ public class CameraActivity extends Activity implements OnClickListener, Observe
 
       @Override
       public void pictureTaken(byte[] jpeg, int rotationToApply) {
+        if (mBurst != null) {
+          mBurst.pictureTaken(jpeg, rotationToApply);
+          return;
+        }
         if (!mPhotoFile.isOpen())
           return;
-        IPoint pictureSize = mCamera.getProperties().getPictureSize();
-        mPhotoFile.createPhoto(jpeg, pictureSize, rotationToApply);
+        mPhotoFile.createPhoto(jpeg, rotationToApply);
       }
     });
 
@@ -84,6 +86,8 @@ public class CameraActivity extends Activity implements OnClickListener, Observe
   }
 
   private void pauseCamera() {
+    if (mBurst != null)
+      mBurst.cancel();
     mCamera.close();
     mCamera = null;
     mCameraViewContainer.removeView(mPreview);
@@ -105,17 +109,43 @@ public class CameraActivity extends Activity implements OnClickListener, Observe
     if (style % 2 != 0)
       mPreview.setFrameStyle(CameraPreview.FRAMESTYLE_NONE);
 
+    mPreview.setAgedPreview(true);
     mPreview.setKeepScreenOn(true);
     mPreview.setOnClickListener(this);
+    mPreview.setOnLongClickListener(new View.OnLongClickListener() {
+      @Override
+      public boolean onLongClick(View v) {
+        startBurst();
+        return true;
+      }
+    });
   }
 
   @Override
   public void onClick(View arg0) {
-    if (!mCamera.isOpen())
+    if (!mCamera.isOpen() || mBurst != null)
       return;
     mCamera.takePicture();
   }
 
+  private static final int BURST_SHOT_COUNT = 5;
+
+  private void startBurst() {
+    if (!mCamera.isOpen() || mCamera.isTakingPicture() || mBurst != null)
+      return;
+    if (!mPhotoFile.isOpen())
+      return;
+    mBurst = new BurstCapture(mCamera, mPhotoFile, BURST_SHOT_COUNT,
+        BurstCapture.DEFAULT_MAX_SHOTS_IN_FLIGHT, new BurstCapture.Listener() {
+      @Override
+      public void burstCaptured(BurstCapture burst) {
+        // Leave activity now that the photos were taken (and saved)
+        finish();
+      }
+    });
+    mBurst.start();
+  }
+
   @Override
   protected void onResume() {
     super.onResume();
@@ -137,14 +167,20 @@ public class CameraActivity extends Activity implements OnClickListener, Observe
     PhotoFile.Event event = (PhotoFile.Event) args[0];
 
     switch (event) {
-      case PhotoCreated:
-        // Leave activity now that photo was taken (and saved)
+      case PhotoCaptured:
+        // If a burst is being taken, we leave once it's been captured
+        if (mBurst != null)
+          break;
+        // Leave activity now that photo was taken (and saved); it will be
+        // processed in the background
         this.finish();
         break;
     }
   }
 
   private MyCamera mCamera;
+  // The burst being taken, if any
+  private BurstCapture mBurst;
   private CameraPreview mPreview;
   private FrameLayout mCameraViewContainer;
   private PhotoFile mPhotoFile;
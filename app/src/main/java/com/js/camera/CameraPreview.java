@@ -3,11 +3,16 @@ package com.js.camera;
 import java.util.List;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.ImageFormat;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Shader;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
@@ -107,10 +112,40 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
       mSurfaceView.getHolder().addCallback(this);
       // Construct overlay view last, since it should appear in front
       constructOverlayView();
+      if (mAgedPreview)
+        startFrameProcessor();
     }
     mCamera.startPreview();
   }
 
+  @Override
+  protected void onDetachedFromWindow() {
+    if (mFrameProcessor != null) {
+      mFrameProcessor.stop();
+      mFrameProcessor = null;
+    }
+    super.onDetachedFromWindow();
+  }
+
+  /**
+   * Start processing the camera's preview frames, to display them (in the overlay
+   * view) with an aged look
+   */
+  private void startFrameProcessor() {
+    if (mCamera.getProperties().format() != ImageFormat.NV21) {
+      warning("Preview format isn't NV21; can't display aged preview");
+      return;
+    }
+    mFrameProcessor = new PreviewFrameProcessor(mCamera, new PreviewFrameProcessor.Listener() {
+      @Override
+      public void frameProcessed(Bitmap frame) {
+        mProcessedFrame = frame;
+        mOverlayView.invalidate();
+      }
+    });
+    mCamera.setPreviewFrameConsumer(mFrameProcessor);
+  }
+
   // ------------- SurfaceHolder.Callback interface
 
   @Override
@@ -188,7 +223,8 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
   }
 
   private void constructOverlayView() {
-    if (mFrameStyle != FRAMESTYLE_NONE || mOverlayGlassColor != TRANSPARENT_COLOR) {
+    if (mFrameStyle != FRAMESTYLE_NONE || mOverlayGlassColor != TRANSPARENT_COLOR
+        || mAgedPreview) {
       mOverlayView = new OverlayView(this);
       addView(mOverlayView);
     }
@@ -217,20 +253,57 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
       Rect r = sRect;
       r.setTo(0, 0, getWidth(), getHeight());
 
+      // If there's a processed preview frame, it's drawn over the glass
+      Paint processedFramePaint = prepareProcessedFramePaint();
       if (mContainer.mFrameStyle == FRAMESTYLE_BEVEL) {
         // Fill the exterior of the rectangle with the background color,
         // then use PorterDuff CLEAR mode to fill the interior of the (rounded)
         // rectangle with transparent color
         sCanvas.drawRect(r.x, r.y, r.width, r.height, sFramePaint);
         fillRoundedRect(r, sGlassPaint);
+        if (processedFramePaint != null)
+          sCanvas.drawPath(sPath, processedFramePaint);
       } else {
         sCanvas.drawRect(r.x, r.y, r.width, r.height, sGlassPaint);
+        if (processedFramePaint != null)
+          sCanvas.drawRect(r.x, r.y, r.width, r.height, processedFramePaint);
       }
 
       // Don't retain reference to canvas
       prepareGraphicElements(null);
     }
 
+    /**
+     * Prepare a paint that draws the container's processed preview frame, rotated
+     * and scaled to fill this view
+     *
+     * @return paint, or null if there is no processed frame
+     */
+    private Paint prepareProcessedFramePaint() {
+      Bitmap frame = mContainer.mProcessedFrame;
+      if (frame == null)
+        return null;
+      if (frame != mShaderBitmap) {
+        mShaderBitmap = frame;
+        mProcessedFramePaint.setShader(new BitmapShader(frame, Shader.TileMode.CLAMP,
+            Shader.TileMode.CLAMP));
+      }
+      int rotation = mContainer.mCamera.getProperties().rotation();
+      float frameWidth = frame.getWidth();
+      float frameHeight = frame.getHeight();
+      if (rotation == 90 || rotation == 270) {
+        frameWidth = frame.getHeight();
+        frameHeight = frame.getWidth();
+      }
+      Matrix matrix = mProcessedFrameMatrix;
+      matrix.setTranslate(-frame.getWidth() / 2.0f, -frame.getHeight() / 2.0f);
+      matrix.postRotate(rotation);
+      matrix.postScale(getWidth() / frameWidth, getHeight() / frameHeight);
+      matrix.postTranslate(getWidth() / 2.0f, getHeight() / 2.0f);
+      mProcessedFramePaint.getShader().setLocalMatrix(matrix);
+      return mProcessedFramePaint;
+    }
+
     /**
      * Prepare the graphics elements, some of which are lazy-initialized.
      * We are encouraged not to construct objects during rendering
@@ -281,6 +354,10 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
     private static Paint sFramePaint;
     private static Paint sGlassPaint;
     private CameraPreview mContainer;
+    private final Paint mProcessedFramePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix mProcessedFrameMatrix = new Matrix();
+    // The bitmap that the processed frame paint's shader was constructed for
+    private Bitmap mShaderBitmap;
   }
 
   public void setGlassColor(int color) {
@@ -298,6 +375,15 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
     mFrameRadius = radius;
   }
 
+  /**
+   * Specify whether the preview is to be displayed with an aged look; if so, the
+   * camera's preview frames are processed and displayed in the overlay view
+   */
+  public void setAgedPreview(boolean flag) {
+    assertInitializing();
+    mAgedPreview = flag;
+  }
+
   public static final int FRAMESTYLE_NONE = 0, FRAMESTYLE_BEVEL = 1;
 
   private static final int TRANSPARENT_COLOR = 0x00ffffff;
@@ -312,4 +398,8 @@ public class CameraPreview extends ViewGroup implements SurfaceHolder.Callback {
   private int mOverlayGlassColor;
   private int mFrameStyle;
   private float mFrameRadius;
+  private boolean mAgedPreview;
+  private PreviewFrameProcessor mFrameProcessor;
+  // The most recently processed preview frame, if any
+  private Bitmap mProcessedFrame;
 }
@@ -0,0 +1,55 @@
+package com.js.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A token that can be used to cancel a group of TaskSequences.
+ * <p/>
+ * Cancelling the token aborts each sequence associated with it, dropping any of their
+ * stages that are queued but have not yet started.  Long-running stages should
+ * poll isCancelled() (or TaskSequence.isCancelled()) and return early when it is true.
+ * <p/>
+ * Thread safe.
+ */
+public class CancellationToken {
+
+  /**
+   * Cancel the token, and any sequences associated with it
+   */
+  public void cancel() {
+    List<TaskSequence> sequences;
+    synchronized (this) {
+      if (mCancelled)
+        return;
+      mCancelled = true;
+      sequences = new ArrayList<TaskSequence>(mSequences);
+      mSequences.clear();
+    }
+    for (TaskSequence sequence : sequences)
+      sequence.cancel();
+  }
+
+  public boolean isCancelled() {
+    return mCancelled;
+  }
+
+  /**
+   * Associate a sequence with this token
+   *
+   * @return false if token has already been cancelled
+   */
+  synchronized boolean register(TaskSequence sequence) {
+    if (mCancelled)
+      return false;
+    mSequences.add(sequence);
+    return true;
+  }
+
+  synchronized void unregister(TaskSequence sequence) {
+    mSequences.remove(sequence);
+  }
+
+  private volatile boolean mCancelled;
+  private final List<TaskSequence> mSequences = new ArrayList<TaskSequence>();
+}
@@ -0,0 +1,169 @@
+package com.js.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import com.js.basic.IPoint;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Plans the decoding of a JPEG, so that only the region of the image that is
+ * needed is decoded, and at no more than the resolution that is needed.
+ * <p/>
+ * The image's size is determined without decoding its pixels; a plan (region,
+ * sample size, and output size) is then chosen for a particular purpose (e.g., a
+ * thumbnail), and the region decoded accordingly.
+ */
+class DecodePlanner {
+
+  // Thumbnails are cropped from the center of the photo; this is the fraction of
+  // the photo's smaller dimension that they span
+  public static final float THUMBNAIL_CROP_FACTOR = .8f;
+
+  public DecodePlanner(int imageWidth, int imageHeight) {
+    if (imageWidth <= 0 || imageHeight <= 0)
+      throw new IllegalArgumentException("bad image size " + imageWidth + " x " + imageHeight);
+    mImageSize = new IPoint(imageWidth, imageHeight);
+  }
+
+  /**
+   * Construct a planner for a JPEG file, reading only its header
+   */
+  public static DecodePlanner forFile(File file) throws IOException {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(file.getPath(), options);
+    if (options.outWidth <= 0)
+      throw new IOException("unable to read bounds of " + file);
+    return new DecodePlanner(options.outWidth, options.outHeight);
+  }
+
+  /**
+   * Construct a planner for a JPEG, reading only its header
+   */
+  public static DecodePlanner forJPEG(byte[] jpeg) throws IOException {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+    if (options.outWidth <= 0)
+      throw new IOException("unable to read bounds of JPEG");
+    return new DecodePlanner(options.outWidth, options.outHeight);
+  }
+
+  public IPoint getImageSize() {
+    return mImageSize;
+  }
+
+  /**
+   * Plan the decoding of a square thumbnail, cropped from the center of the image
+   */
+  public void planThumbnail(int thumbnailSize) {
+    int side = (int) (Math.min(mImageSize.x, mImageSize.y) * THUMBNAIL_CROP_FACTOR);
+    int left = (mImageSize.x - side) / 2;
+    int top = (mImageSize.y - side) / 2;
+    mRegion = new Rect(left, top, left + side, top + side);
+    mOutputSize = new IPoint(thumbnailSize, thumbnailSize);
+    mSampleSize = calcSampleSize(side, side, thumbnailSize, thumbnailSize);
+  }
+
+  /**
+   * Plan the decoding of the entire image, to be scaled (preserving its aspect ratio)
+   * to fit within a target size; it's never scaled up
+   */
+  public void planFit(IPoint targetSize) {
+    float scale = Math.min(1, Math.min(targetSize.x / (float) mImageSize.x,
+        targetSize.y / (float) mImageSize.y));
+    mRegion = new Rect(0, 0, mImageSize.x, mImageSize.y);
+    mOutputSize = new IPoint(Math.max(1, Math.round(mImageSize.x * scale)),
+        Math.max(1, Math.round(mImageSize.y * scale)));
+    mSampleSize = calcSampleSize(mImageSize.x, mImageSize.y, mOutputSize.x, mOutputSize.y);
+  }
+
+  /**
+   * Get the region of the image to be decoded, in image coordinates
+   */
+  public Rect getRegion() {
+    assertPlanned();
+    return mRegion;
+  }
+
+  /**
+   * Get the size of the bitmap that is to be produced from the region
+   */
+  public IPoint getOutputSize() {
+    assertPlanned();
+    return mOutputSize;
+  }
+
+  public int getSampleSize() {
+    assertPlanned();
+    return mSampleSize;
+  }
+
+  /**
+   * Calculate the largest power of two by which a source can be subsampled while
+   * still covering a target size
+   */
+  public static int calcSampleSize(int sourceWidth, int sourceHeight, int targetWidth,
+                                   int targetHeight) {
+    int sampleSize = 1;
+    while (sourceWidth / (sampleSize * 2) >= targetWidth
+        && sourceHeight / (sampleSize * 2) >= targetHeight)
+      sampleSize *= 2;
+    return sampleSize;
+  }
+
+  /**
+   * Decode the planned region of a JPEG file
+   */
+  public Bitmap decodeRegion(File file) throws IOException {
+    return decodeRegion(BitmapRegionDecoder.newInstance(file.getPath(), false));
+  }
+
+  /**
+   * Decode the planned region of a JPEG
+   */
+  public Bitmap decodeRegion(byte[] jpeg) throws IOException {
+    return decodeRegion(BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false));
+  }
+
+  /**
+   * Extract the planned region from a bitmap of the (entire) image
+   */
+  public Bitmap extractRegion(Bitmap bitmap) {
+    assertPlanned();
+    if (bitmap.getWidth() != mImageSize.x || bitmap.getHeight() != mImageSize.y)
+      throw new IllegalArgumentException("bitmap doesn't match image size");
+    return Bitmap.createBitmap(bitmap, mRegion.left, mRegion.top, mRegion.width(),
+        mRegion.height());
+  }
+
+  private Bitmap decodeRegion(BitmapRegionDecoder decoder) throws IOException {
+    assertPlanned();
+    try {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inSampleSize = mSampleSize;
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      Bitmap bitmap = decoder.decodeRegion(mRegion, options);
+      if (bitmap == null)
+        throw new IOException("unable to decode region " + mRegion);
+      return bitmap;
+    } finally {
+      decoder.recycle();
+    }
+  }
+
+  private void assertPlanned() {
+    if (mRegion == null)
+      throw new IllegalStateException("no plan has been made");
+  }
+
+  private final IPoint mImageSize;
+  private Rect mRegion;
+  private IPoint mOutputSize;
+  private int mSampleSize;
+}
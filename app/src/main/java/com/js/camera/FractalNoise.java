@@ -0,0 +1,123 @@
+package com.js.camera;
+
+/**
+ * Fractal (fBm) noise: a sum of octaves of PerlinNoise, each of higher frequency
+ * and lower amplitude than the one before.
+ * <p/>
+ * Octave k is sampled at lacunarity^k times the base frequency, scaled by gain^k,
+ * and uses its own PerlinNoise grid, seeded by octaveSeed(seed, k).  The values
+ * produced are a function only of the seed, the parameters, and the requested
+ * region; they don't depend upon the number of threads used to evaluate them.  So
+ * storing a seed with a photo guarantees the photo always receives the same texture.
+ * (Hence octaveSeed() and PerlinNoise's gradient construction must never change.)
+ * <p/>
+ * The parameters must be set before the first call to fill(); after that,
+ * fill() is thread safe.
+ */
+public class FractalNoise {
+
+  public FractalNoise(int seed) {
+    mSeed = seed;
+  }
+
+  public int getSeed() {
+    return mSeed;
+  }
+
+  public void setOctaves(int octaves) {
+    if (octaves < 1) throw new IllegalArgumentException();
+    assertNotBuilt();
+    mOctaves = octaves;
+  }
+
+  /**
+   * Set the factor by which each octave's frequency exceeds the previous one's
+   */
+  public void setLacunarity(float lacunarity) {
+    assertNotBuilt();
+    mLacunarity = lacunarity;
+  }
+
+  /**
+   * Set the factor by which each octave's amplitude is scaled relative to the previous one's
+   */
+  public void setGain(float gain) {
+    assertNotBuilt();
+    mGain = gain;
+  }
+
+  public void setInterpolation(PerlinNoise.Interpolation interpolation) {
+    assertNotBuilt();
+    mInterpolation = interpolation;
+  }
+
+  public void setGradientSelection(PerlinNoise.GradientSelection selection) {
+    assertNotBuilt();
+    mGradientSelection = selection;
+  }
+
+  /**
+   * Derive the seed for an octave's PerlinNoise grid
+   */
+  public static int octaveSeed(int seed, int octave) {
+    int x = seed * 0x9e3779b9 + octave;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x);
+    return x;
+  }
+
+  /**
+   * Evaluate the noise over a rectangle of samples, in parallel.  Sample (i, j)
+   * corresponds to base frequency coordinates (originX + i * scale, originY + j * scale),
+   * and is stored at values[j * width + i].  With a gain less than one, values
+   * lie within (-1 / (1 - gain) .. 1 / (1 - gain))
+   */
+  public void fill(final float[] values, final int width, int height, final float originX,
+                   final float originY, final float scale) {
+    if (values.length < width * height) throw new IllegalArgumentException();
+    final PerlinNoise[] octaves = octaves();
+    RowBandExecutor.run(height, 1, new RowBandExecutor.Kernel() {
+      @Override
+      public void processRows(int startRow, int endRow) {
+        float frequency = 1;
+        float amplitude = 1;
+        for (int k = 0; k < octaves.length; k++) {
+          octaves[k].fillRows(values, width, startRow, endRow, originX * frequency,
+              originY * frequency, scale * frequency, amplitude, k != 0);
+          frequency *= mLacunarity;
+          amplitude *= mGain;
+        }
+      }
+    });
+  }
+
+  private synchronized PerlinNoise[] octaves() {
+    if (mOctaveNoise == null) {
+      PerlinNoise[] octaves = new PerlinNoise[mOctaves];
+      for (int k = 0; k < mOctaves; k++) {
+        PerlinNoise noise = new PerlinNoise();
+        noise.setSeed(octaveSeed(mSeed, k));
+        noise.setInterpolation(mInterpolation);
+        noise.setGradientSelection(mGradientSelection);
+        noise.buildGrid();
+        octaves[k] = noise;
+      }
+      mOctaveNoise = octaves;
+    }
+    return mOctaveNoise;
+  }
+
+  private synchronized void assertNotBuilt() {
+    if (mOctaveNoise != null)
+      throw new IllegalStateException();
+  }
+
+  private final int mSeed;
+  private int mOctaves = 4;
+  private float mLacunarity = 2;
+  private float mGain = .5f;
+  private PerlinNoise.Interpolation mInterpolation = PerlinNoise.Interpolation.CUBIC;
+  private PerlinNoise.GradientSelection mGradientSelection = PerlinNoise.GradientSelection.HASH;
+  private PerlinNoise[] mOctaveNoise;
+}
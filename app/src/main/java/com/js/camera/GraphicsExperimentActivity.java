@@ -5,7 +5,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.FrameLayout;
@@ -13,18 +12,12 @@ import android.widget.ImageView;
 
 import com.js.android.UITools;
 import com.js.basic.IPoint;
-import com.js.basic.MyMath;
 
 import static com.js.android.AndroidTools.*;
 import static com.js.basic.Tools.*;
 
 public class GraphicsExperimentActivity extends Activity {
 
-  private enum ActivityState {
-    Paused,
-    Resumed,
-  }
-
   public static Intent buildIntent(Context context) {
     Intent intent = new Intent(context, GraphicsExperimentActivity.class);
     return intent;
@@ -43,14 +36,15 @@ public class GraphicsExperimentActivity extends Activity {
   @Override
   protected void onResume() {
     super.onResume();
-    setState(ActivityState.Resumed);
-    new BuildImageTask().start();
+    mCancellationToken = new CancellationToken();
+    new BuildImageTask().setCancellationToken(mCancellationToken).start();
   }
 
   @Override
   protected void onPause() {
     super.onPause();
-    setState(ActivityState.Paused);
+    // Stop building the image; we won't be displaying it
+    mCancellationToken.cancel();
   }
 
   private View buildContentView() {
@@ -62,18 +56,14 @@ public class GraphicsExperimentActivity extends Activity {
     return layout;
   }
 
-  private void setState(ActivityState state) {
-    mState = state;
-  }
-
   private class BuildImageTask extends TaskSequence {
 
+    public BuildImageTask() {
+      setBgndPool(AppState.BgndPool.CPU);
+    }
+
     @Override
     protected void execute(int stageNumber) {
-      if (mState != ActivityState.Resumed) {
-        abort();
-        return;
-      }
       switch (stageNumber) {
         case 0:
           constructImage();
@@ -91,38 +81,31 @@ public class GraphicsExperimentActivity extends Activity {
       final int gridCellSize = 16;
       IPoint gridSize = new IPoint((int) (mBitmap.getWidth() / (float) gridCellSize),
           (int) (mBitmap.getHeight() / (float) gridCellSize));
-      PerlinNoise noise = null;
 
       int gridWidthPixels = gridSize.x * gridCellSize;
       int gridHeightPixels = gridSize.y * gridCellSize;
+      float scale = 1.0f / gridCellSize;
 
-      final int numBands = 4;
-      int prevBand = -1;
-      for (int py = 0; py < gridHeightPixels; py++) {
-        int band = Math.min(numBands - 1, py / (gridHeightPixels / numBands));
-        if (band != prevBand) {
-          noise = new PerlinNoise();
-          prevBand = band;
-          noise.buildGrid();
-          continue;
-        }
+      // Generate the image a few rows of grid cells at a time
+      final int rowsPerChunk = gridCellSize * 4;
+      float[] values = new float[gridWidthPixels * rowsPerChunk];
+      int[] pixels = new int[values.length];
 
-        float gy = py / (float) gridCellSize;
-        for (int px = 0; px < gridWidthPixels; px++) {
-          float gx = px / (float) gridCellSize;
-          float value;
-          value = noise.noiseAt(gx, gy);
-          if (band != 0) {
-            float power = 2;
-            for (int iter = 0; iter < band; iter++) {
-              value += noise.noiseAt(gx * power, gy * power) / power;
-              power *= 2;
-            }
-          }
-          value = MyMath.clamp((value + 1) / 2, 0, 1.0f);
-          int gray = (int) (value * 255.99f);
-          int color = Color.argb(0xff, gray, gray, gray);
-          mBitmap.setPixel(px, py, color);
+      final int numBands = 4;
+      final int NOISE_SEED = 1;
+      int bandHeight = gridHeightPixels / numBands;
+      for (int band = 0; band < numBands; band++) {
+        // Each band has one more octave than the previous, and its own seed
+        FractalNoise noise = new FractalNoise(FractalNoise.octaveSeed(NOISE_SEED, band));
+        noise.setOctaves(band + 1);
+        int bandEnd = (band == numBands - 1) ? gridHeightPixels : (band + 1) * bandHeight;
+        for (int py = band * bandHeight; py < bandEnd; py += rowsPerChunk) {
+          if (isCancelled())
+            return;
+          int rows = Math.min(rowsPerChunk, bandEnd - py);
+          noise.fill(values, gridWidthPixels, rows, 0, py * scale, scale);
+          PerlinNoise.valuesToGrayPixels(values, pixels, gridWidthPixels * rows);
+          mBitmap.setPixels(pixels, 0, gridWidthPixels, 0, py, gridWidthPixels, rows);
         }
       }
     }
@@ -138,7 +121,7 @@ public class GraphicsExperimentActivity extends Activity {
     private Canvas mCanvas;
   }
 
-  private ActivityState mState = ActivityState.Paused;
+  private CancellationToken mCancellationToken;
   private ImageView mImageView;
 
 }
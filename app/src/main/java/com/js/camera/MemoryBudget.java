@@ -0,0 +1,93 @@
+package com.js.camera;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+import com.js.basic.IPoint;
+
+/**
+ * The app's budget for in-memory caches, and how it is divided between them.
+ * <p/>
+ * The caches are bounded independently, so they could otherwise claim most of the
+ * heap between them, leaving little for the photos being processed and displayed.
+ * Instead, together they occupy a fixed fraction of the heap:
+ * <p/>
+ * - the vignette cache, which only needs to hold a few vignettes (those used by the
+ * photos being displayed or aged);
+ * <p/>
+ * - the BitmapPool, which needs to hold the intermediate bitmaps of one or two
+ * pipelines (capturing, aging, generating thumbnails);
+ * <p/>
+ * - Picasso's cache of photos and thumbnails for display, which gets the rest.
+ * <p/>
+ * The vignette cache and the BitmapPool are emptied when the system reports that
+ * memory is low.
+ */
+class MemoryBudget {
+
+  // Fraction of the maximum heap size that the caches may occupy together
+  private static final int HEAP_FRACTION = 4;
+
+  // Number of vignettes (of the logical photo size) that the vignette cache holds
+  private static final int VIGNETTE_CACHE_ENTRIES = 3;
+
+  // Fraction of the remaining budget given to the BitmapPool
+  private static final int BITMAP_POOL_FRACTION = 3;
+
+  /**
+   * Register to be notified of memory pressure, so the caches can be trimmed
+   */
+  public static void prepare(Context context) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+      registerMemoryCallbacks(context.getApplicationContext());
+  }
+
+  public static int vignetteCacheBytes() {
+    IPoint size = PhotoInfo.getLogicalMaximumSize(true);
+    long bytes = Math.min(VIGNETTE_CACHE_ENTRIES * 4L * size.x * size.y, totalBytes() / 4);
+    return (int) bytes;
+  }
+
+  public static int bitmapPoolBytes() {
+    return (int) ((totalBytes() - vignetteCacheBytes()) / BITMAP_POOL_FRACTION);
+  }
+
+  public static int pictureCacheBytes() {
+    return (int) (totalBytes() - vignetteCacheBytes() - bitmapPoolBytes());
+  }
+
+  private static long totalBytes() {
+    return Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+  }
+
+  @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+  private static void registerMemoryCallbacks(Context context) {
+    context.registerComponentCallbacks(new ComponentCallbacks2() {
+      @Override
+      public void onTrimMemory(int level) {
+        // Vignettes and pooled bitmaps are only needed while photos are being displayed
+        // or processed; so discard them if the UI is hidden, or memory is getting low
+        if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW
+            || level == TRIM_MEMORY_RUNNING_CRITICAL)
+          evictAll();
+      }
+
+      @Override
+      public void onConfigurationChanged(Configuration newConfig) {
+      }
+
+      @Override
+      public void onLowMemory() {
+        evictAll();
+      }
+    });
+  }
+
+  private static void evictAll() {
+    VignetteCache.evictShared();
+    BitmapPool.sharedInstance().evictAll();
+  }
+}
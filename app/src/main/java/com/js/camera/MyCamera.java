@@ -1,6 +1,7 @@
 package com.js.camera;
 
 import android.app.Activity;
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.view.Surface;
 
@@ -35,6 +36,25 @@ public class MyCamera {
     void pictureTaken(byte[] jpeg, int rotationToApply);
   }
 
+  /**
+   * Receives preview frames that have been delivered into preallocated buffers
+   */
+  public interface PreviewFrameConsumer {
+    /**
+     * Called, on the camera's callback thread, when a preview frame is available.
+     * The consumer must pass the frame to returnPreviewBuffer() once it's done
+     * with it (from any thread), so the camera can fill it again; until then, the
+     * camera has one fewer buffer to deliver frames into
+     *
+     * @param frame frame data, in the preview format
+     * @param size  size of frame
+     */
+    void previewFrameAvailable(byte[] frame, IPoint size);
+  }
+
+  // Number of buffers allocated for preview frames
+  public static final int PREVIEW_BUFFER_COUNT = 3;
+
   public MyCamera(Activity activity, Listener listener) {
     mState = State.Start;
     mListener = listener;
@@ -123,6 +143,7 @@ public class MyCamera {
           }
         };
     t.addSimulatedDelays(300);
+    t.setPriority(AppState.Priority.CAPTURE);
     t.start();
   }
 
@@ -166,6 +187,8 @@ public class MyCamera {
       return;
     if (!isOpen())
       return;
+    if (mPreviewFrameConsumer != null)
+      installPreviewBuffers();
     mCamera.startPreview();
     mPreviewStarted = true;
     if (mPreviewCallback != null)
@@ -194,6 +217,10 @@ public class MyCamera {
     if (mCamera != null) {
       mCamera.release();
     }
+    synchronized (mPreviewBufferLock) {
+      mPreviewBuffers = null;
+      mHeldPreviewBuffers.clear();
+    }
     setState(State.Closed);
   }
 
@@ -225,13 +252,152 @@ public class MyCamera {
   public void setPreviewCallback(Camera.PreviewCallback callback) {
     if (callback == null)
       throw new IllegalArgumentException();
+    mPreviewFrameConsumer = null;
     mPreviewCallback = callback;
     if (isOpen())
       mCamera.setPreviewCallback(mPreviewCallback);
   }
 
-  public void takePicture() {
+  /**
+   * Install a PreviewFrameConsumer; preview frames will be delivered into a small
+   * ring of preallocated buffers (instead of a new buffer for each frame); this
+   * replaces any PreviewCallback
+   */
+  public void setPreviewFrameConsumer(PreviewFrameConsumer consumer) {
+    assertUIThread();
+    if (consumer == null)
+      throw new IllegalArgumentException();
+    mPreviewCallback = null;
+    mPreviewFrameConsumer = consumer;
+    if (isOpen()) {
+      mCamera.setPreviewCallback(null);
+      installPreviewBuffers();
+    }
+  }
+
+  /**
+   * Return a buffer, previously passed to a PreviewFrameConsumer, so the camera
+   * can fill it with another frame; may be called from any thread
+   */
+  public void returnPreviewBuffer(final byte[] buffer) {
+    if (!isUIThread()) {
+      AppState.postUIEvent(new Runnable() {
+        @Override
+        public void run() {
+          returnPreviewBuffer(buffer);
+        }
+      });
+      return;
+    }
+    if (!isOpen())
+      return;
+    synchronized (mPreviewBufferLock) {
+      removeBuffer(mHeldPreviewBuffers, buffer);
+      // If the buffer is from a previous ring (e.g., the preview size has changed
+      // since it was filled), discard it
+      if (mPreviewBuffers == null || !containsBuffer(mPreviewBuffers, buffer))
+        return;
+    }
+    mCamera.addCallbackBuffer(buffer);
+  }
+
+  /**
+   * Calculate the size of a buffer required to hold a preview frame
+   */
+  public static int calcPreviewBufferSize(Properties properties) {
+    IPoint size = properties.previewSize();
+    int bitsPerPixel = ImageFormat.getBitsPerPixel(properties.format());
+    if (bitsPerPixel <= 0)
+      throw new IllegalArgumentException("Unsupported preview format: " + properties.format());
+    return (size.x * size.y * bitsPerPixel + 7) / 8;
+  }
+
+  /**
+   * Allocate a ring of buffers for the current preview size, and register them
+   * with the camera; if the current ring is the right size, reuse it, but don't
+   * register those buffers still held by the consumer (they will be registered
+   * when returned)
+   */
+  private void installPreviewBuffers() {
+    IPoint size = mProperties.previewSize();
+    int bufferSize = calcPreviewBufferSize(mProperties);
+    List<byte[]> buffers = new ArrayList<byte[]>();
+    synchronized (mPreviewBufferLock) {
+      if (mPreviewBuffers == null || mPreviewBuffers.get(0).length != bufferSize) {
+        mPreviewBuffers = new ArrayList<byte[]>();
+        for (int i = 0; i < PREVIEW_BUFFER_COUNT; i++)
+          mPreviewBuffers.add(new byte[bufferSize]);
+        // Any buffers still held belong to the old ring, and will be discarded
+        // when returned
+        mHeldPreviewBuffers.clear();
+        trace("Allocated " + PREVIEW_BUFFER_COUNT + " preview buffers of size " + bufferSize);
+      }
+      mPreviewBufferFrameSize = size;
+      for (byte[] buffer : mPreviewBuffers)
+        if (!containsBuffer(mHeldPreviewBuffers, buffer))
+          buffers.add(buffer);
+    }
+    // Installing the callback discards any buffers the camera is holding, so add
+    // all those not held by the consumer (again)
+    mCamera.setPreviewCallbackWithBuffer(null);
+    mCamera.setPreviewCallbackWithBuffer(mPreviewCallbackWithBuffer);
+    for (byte[] buffer : buffers)
+      mCamera.addCallbackBuffer(buffer);
+  }
+
+  private static boolean containsBuffer(List<byte[]> buffers, byte[] buffer) {
+    for (byte[] b : buffers)
+      if (b == buffer)
+        return true;
+    return false;
+  }
+
+  private static void removeBuffer(List<byte[]> buffers, byte[] buffer) {
+    for (int i = 0; i < buffers.size(); i++) {
+      if (buffers.get(i) == buffer) {
+        buffers.remove(i);
+        return;
+      }
+    }
+  }
+
+  private Camera.PreviewCallback mPreviewCallbackWithBuffer = new Camera.PreviewCallback() {
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+      PreviewFrameConsumer consumer = mPreviewFrameConsumer;
+      if (data == null)
+        return;
+      IPoint size;
+      synchronized (mPreviewBufferLock) {
+        size = mPreviewBufferFrameSize;
+        if (consumer != null && size != null)
+          mHeldPreviewBuffers.add(data);
+      }
+      if (consumer == null || size == null) {
+        returnPreviewBuffer(data);
+        return;
+      }
+      consumer.previewFrameAvailable(data, size);
+    }
+  };
+
+  /**
+   * Take a picture; the Listener's pictureTaken() is called when it is available
+   *
+   * @return false if a picture is already being taken (in which case this one isn't)
+   */
+  public boolean takePicture() {
+    if (mTakingPicture) {
+      trace("takePicture() ignored; already taking one");
+      return false;
+    }
     camera().takePicture(null, null, mTakePictureJPEGCallback);
+    mTakingPicture = true;
+    return true;
+  }
+
+  public boolean isTakingPicture() {
+    return mTakingPicture;
   }
 
   private int determineDisplayOrientation(Camera.CameraInfo info) {
@@ -265,6 +431,7 @@ public class MyCamera {
     public void onPictureTaken(final byte[] data, Camera camera) {
       AppState.postUIEvent(new Runnable() {
         public void run() {
+          mTakingPicture = false;
           try {
             if (data != null)
               mListener.pictureTaken(data, mCorrectingRotation);
@@ -372,7 +539,15 @@ public class MyCamera {
   private String mFailureMessage;
   private Listener mListener;
   private boolean mPreviewStarted;
+  private boolean mTakingPicture;
   private Camera.PreviewCallback mPreviewCallback;
+  private volatile PreviewFrameConsumer mPreviewFrameConsumer;
+  private final Object mPreviewBufferLock = new Object();
+  // Buffers for preview frames, and the frame size they were allocated for
+  private List<byte[]> mPreviewBuffers;
+  // Buffers delivered to the consumer that it has not yet returned
+  private final List<byte[]> mHeldPreviewBuffers = new ArrayList<byte[]>();
+  private IPoint mPreviewBufferFrameSize;
   private Properties mProperties;
 
   /**
@@ -0,0 +1,142 @@
+package com.js.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.js.basic.Tools.*;
+
+/**
+ * Noise textures used to simulate film grain and blotches on aged photos.
+ * <p/>
+ * A small set of seeded tiles is generated once, saved (as PNGs) to a directory,
+ * and read from there thereafter.  Each photo selects a tile, flip and offset using
+ * its hash value, which gives per-photo variety without per-photo noise generation.
+ * <p/>
+ * Thread safe.
+ */
+class NoiseTextureCache {
+
+  public enum Kind {
+    // Fine noise, centered on middle gray
+    GRAIN("grain", 256, 2.0f, 3),
+    // Sparse dark spots on white; low resolution, so it is scaled up when drawn
+    BLOTCH("blotch", 128, 24.0f, 4);
+
+    Kind(String name, int tileSize, float cellSize, int octaves) {
+      mName = name;
+      mTileSize = tileSize;
+      mCellSize = cellSize;
+      mOctaves = octaves;
+    }
+
+    public int getTileSize() {
+      return mTileSize;
+    }
+
+    private final String mName;
+    private final int mTileSize;
+    // Size of the noise's (first octave) grid cells, in pixels
+    private final float mCellSize;
+    private final int mOctaves;
+  }
+
+  public static final int TILES_PER_KIND = 4;
+
+  // Increment this if the way tiles are generated changes, so old files are ignored
+  private static final int VERSION = 1;
+
+  public NoiseTextureCache(File directory, int seed) {
+    mDirectory = directory;
+    mSeed = seed;
+    mTiles = new Bitmap[Kind.values().length][TILES_PER_KIND];
+  }
+
+  /**
+   * Get a tile, reading or generating it if necessary
+   *
+   * @param index tile index; reduced modulo TILES_PER_KIND
+   */
+  public synchronized Bitmap getTile(Kind kind, int index) {
+    index = myMod(index, TILES_PER_KIND);
+    Bitmap tile = mTiles[kind.ordinal()][index];
+    if (tile == null) {
+      tile = readOrGenerateTile(kind, index);
+      mTiles[kind.ordinal()][index] = tile;
+    }
+    return tile;
+  }
+
+  private Bitmap readOrGenerateTile(Kind kind, int index) {
+    File file = getTileFile(kind, index);
+    if (file.exists()) {
+      Bitmap tile = BitmapFactory.decodeFile(file.getPath());
+      if (tile != null)
+        return tile;
+      warning("Failed to read texture " + file + "; regenerating");
+    }
+    Bitmap tile = generateTile(kind, index);
+    try {
+      writeTile(tile, file);
+    } catch (IOException e) {
+      // We can still use the tile; we'll just have to generate it again next time
+      warning("Failed to write texture " + file + "; " + d(e));
+    }
+    return tile;
+  }
+
+  private Bitmap generateTile(Kind kind, int index) {
+    int size = kind.mTileSize;
+    FractalNoise noise = new FractalNoise(FractalNoise.octaveSeed(mSeed, kind.ordinal()
+        * TILES_PER_KIND + index));
+    noise.setOctaves(kind.mOctaves);
+    float[] values = new float[size * size];
+    noise.fill(values, size, size, 0, 0, 1.0f / kind.mCellSize);
+
+    int[] pixels = new int[values.length];
+    for (int i = 0; i < values.length; i++) {
+      float value = values[i];
+      int gray;
+      if (kind == Kind.GRAIN) {
+        gray = 128 + (int) (value * 160);
+      } else {
+        // Darken only where the noise exceeds a threshold
+        float darkness = (value - .25f) * 4;
+        darkness = (darkness < 0) ? 0 : ((darkness > 1) ? 1 : darkness);
+        gray = 255 - (int) (darkness * 180);
+      }
+      gray = (gray < 0) ? 0 : ((gray > 255) ? 255 : gray);
+      pixels[i] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+    }
+    return Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+  }
+
+  private void writeTile(Bitmap tile, File file) throws IOException {
+    if (!mDirectory.exists() && !mDirectory.mkdirs())
+      throw new IOException("unable to create " + mDirectory);
+    // Write to a temporary file and rename it, so a partially written tile is never read
+    File tempFile = new File(file.getPath() + ".tmp");
+    OutputStream stream = new FileOutputStream(tempFile);
+    try {
+      if (!tile.compress(Bitmap.CompressFormat.PNG, 100, stream))
+        throw new IOException("unable to compress tile");
+    } finally {
+      stream.close();
+    }
+    if (!tempFile.renameTo(file))
+      throw new IOException("unable to rename " + tempFile);
+  }
+
+  private File getTileFile(Kind kind, int index) {
+    return new File(mDirectory, kind.mName + "_" + index + "_" + Integer.toHexString(mSeed)
+        + "_v" + VERSION + ".png");
+  }
+
+  private final File mDirectory;
+  private final int mSeed;
+  private final Bitmap[][] mTiles;
+}
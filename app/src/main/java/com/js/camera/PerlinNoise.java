@@ -14,6 +14,20 @@ public class PerlinNoise {
     QUINTIC,
   }
 
+  /**
+   * Methods of choosing the gradient for a grid vertex
+   */
+  public static enum GradientSelection {
+    // Hash the vertex coordinates, modulo the number of gradients
+    HASH,
+    // Look up the vertex coordinates in a permutation table; cheaper, but the
+    // gradients repeat every PERMUTATION_SIZE grid cells
+    PERMUTATION_TABLE,
+  }
+
+  // Number of entries in the permutation table; must be a power of 2
+  private static final int PERMUTATION_SIZE = 256;
+
   public void setMaxGradients(int maxGradients) {
     if (gridBuilt()) throw new IllegalStateException();
     if (maxGradients < 2) throw new IllegalArgumentException();
@@ -32,11 +46,23 @@ public class PerlinNoise {
     buildGradients();
   }
 
+  public void setGradientSelection(GradientSelection selection) {
+    if (gridBuilt()) throw new IllegalStateException();
+    mGradientSelection = selection;
+  }
+
   public void setInterpolation(Interpolation interpolation) {
     mInterpolation = interpolation;
   }
 
-  private int getGradientIndex(int xGrid, int yGrid) {
+  /**
+   * Get the index of the gradient for a grid vertex (package visibility for testing)
+   */
+  int getGradientIndex(int xGrid, int yGrid) {
+    if (mPermutation != null) {
+      final int mask = PERMUTATION_SIZE - 1;
+      return mPermutationGradients[mPermutation[xGrid & mask] + (yGrid & mask)];
+    }
     // Derive an integer key from vertex coordinates
     final int PRIME = 101561;
     int vertexKey = yGrid * PRIME + xGrid;
@@ -54,6 +80,14 @@ public class PerlinNoise {
   }
 
   private float interpolate(float a0, float a1, float w) {
+    w = weight(w);
+    return (1.0f - w) * a0 + w * a1;
+  }
+
+  /**
+   * Apply the interpolation function to a linear weight
+   */
+  private float weight(float w) {
     switch (mInterpolation) {
       case LINEAR:
         break;
@@ -72,7 +106,7 @@ public class PerlinNoise {
       }
       break;
     }
-    return (1.0f - w) * a0 + w * a1;
+    return w;
   }
 
   /**
@@ -104,6 +138,118 @@ public class PerlinNoise {
     return value;
   }
 
+  /**
+   * Evaluate noise over a rectangle of samples.  Sample (i, j) has value
+   * noiseAt(originX + i * scale, originY + j * scale), and is stored at
+   * values[j * width + i]
+   */
+  public void fill(float[] values, int width, int height, float originX, float originY,
+                   float scale) {
+    fillRows(values, width, 0, height, originX, originY, scale, 1.0f, false);
+  }
+
+  /**
+   * Evaluate noise over a rectangle of samples, as in fill(), adding each (multiplied
+   * by amplitude) to the existing value; e.g. to sum octaves
+   */
+  public void accumulate(float[] values, int width, int height, float originX, float originY,
+                         float scale, float amplitude) {
+    fillRows(values, width, 0, height, originX, originY, scale, amplitude, true);
+  }
+
+  /**
+   * Evaluate noise for rows [startRow, endRow) of a rectangle of samples, as in
+   * fill() or accumulate().  Sample coordinates depend only upon the sample's
+   * position within the rectangle, so the rows can be evaluated in separate calls
+   * (e.g. by different threads) with the same result.  Thread safe once the grid
+   * has been built
+   */
+  void fillRows(float[] values, int width, int startRow, int endRow, float originX,
+                float originY, float scale, float amplitude, boolean accumulate) {
+    if (!gridBuilt()) throw new IllegalStateException();
+    if (values.length < width * endRow) throw new IllegalArgumentException();
+    if (width <= 0 || endRow <= startRow)
+      return;
+
+    // Precalculate each column's grid cell, offset within it, and interpolation weight
+    int[] cellX = new int[width];
+    float[] offsetX = new float[width];
+    float[] weightX = new float[width];
+    for (int i = 0; i < width; i++) {
+      float x = originX + i * scale;
+      cellX[i] = (int) Math.floor(x);
+      offsetX[i] = x - cellX[i];
+      weightX[i] = weight(offsetX[i]);
+    }
+
+    // Gradients for the vertices along the top and bottom of the current row of
+    // cells; these are shared by every sample within the row of cells
+    int minCellX = cellX[0];
+    int numVertices = cellX[width - 1] - minCellX + 2;
+    float[] topGradients = new float[2 * numVertices];
+    float[] bottomGradients = new float[2 * numVertices];
+    int currentCellY = 0;
+    boolean gradientsValid = false;
+
+    int index = startRow * width;
+    for (int j = startRow; j < endRow; j++) {
+      float y = originY + j * scale;
+      int cellY = (int) Math.floor(y);
+      float sy = y - cellY;
+      float wy = weight(sy);
+      if (!gradientsValid || cellY != currentCellY) {
+        readGradients(minCellX, cellY, topGradients);
+        readGradients(minCellX, cellY + 1, bottomGradients);
+        currentCellY = cellY;
+        gradientsValid = true;
+      }
+      float sy1 = sy - 1;
+
+      for (int i = 0; i < width; i++, index++) {
+        int g = 2 * (cellX[i] - minCellX);
+        float sx = offsetX[i];
+        float sx1 = sx - 1;
+        float wx = weightX[i];
+
+        float d00 = topGradients[g] * sx + topGradients[g + 1] * sy;
+        float d10 = topGradients[g + 2] * sx1 + topGradients[g + 3] * sy;
+        float aValue = (1.0f - wx) * d00 + wx * d10;
+        float d01 = bottomGradients[g] * sx + bottomGradients[g + 1] * sy1;
+        float d11 = bottomGradients[g + 2] * sx1 + bottomGradients[g + 3] * sy1;
+        float bValue = (1.0f - wx) * d01 + wx * d11;
+        float value = (1.0f - wy) * aValue + wy * bValue;
+
+        if (accumulate)
+          values[index] += value * amplitude;
+        else
+          values[index] = value;
+      }
+    }
+  }
+
+  /**
+   * Read the gradients for a row of consecutive grid vertices
+   */
+  private void readGradients(int xGrid, int yGrid, float[] destination) {
+    for (int i = 0; i < destination.length; i += 2, xGrid++) {
+      int gradientIndex = 2 * getGradientIndex(xGrid, yGrid);
+      destination[i] = mGradients[gradientIndex];
+      destination[i + 1] = mGradients[gradientIndex + 1];
+    }
+  }
+
+  /**
+   * Convert noise values to opaque gray pixels; values in [-1..1] are mapped
+   * to black..white
+   */
+  public static void valuesToGrayPixels(float[] values, int[] pixels, int count) {
+    for (int i = 0; i < count; i++) {
+      float value = MyMath.clamp((values[i] + 1) / 2, 0, 1.0f);
+      int gray = (int) (value * 255.99f);
+      pixels[i] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+    }
+  }
+
   private void buildGradients() {
     Random r = new Random(mSeed);
 
@@ -119,6 +265,52 @@ public class PerlinNoise {
       mGradients[cursor + 1] = cy;
       cursor += 2;
     }
+
+    if (mGradientSelection == GradientSelection.PERMUTATION_TABLE)
+      buildPermutationTable(r);
+  }
+
+  /**
+   * Build a permutation of [0..PERMUTATION_SIZE), repeated twice so a vertex's entry
+   * can be found without wrapping; and the gradient index for each of its entries.
+   * <p/>
+   * The gradients are shared among the entries as evenly as possible; since the number
+   * of gradients needn't divide PERMUTATION_SIZE, some gradients have one more entry
+   * than others, and these are chosen at random
+   */
+  private void buildPermutationTable(Random r) {
+    int[] permutation = new int[2 * PERMUTATION_SIZE];
+    for (int i = 0; i < PERMUTATION_SIZE; i++)
+      permutation[i] = i;
+    shuffle(permutation, PERMUTATION_SIZE, r);
+    System.arraycopy(permutation, 0, permutation, PERMUTATION_SIZE, PERMUTATION_SIZE);
+
+    int numGradients = mGradients.length / 2;
+    int[] gradientOrder = new int[numGradients];
+    for (int i = 0; i < numGradients; i++)
+      gradientOrder[i] = i;
+    shuffle(gradientOrder, numGradients, r);
+
+    int[] gradients = new int[permutation.length];
+    for (int i = 0; i < PERMUTATION_SIZE; i++)
+      gradients[i] = gradientOrder[i % numGradients];
+    shuffle(gradients, PERMUTATION_SIZE, r);
+    System.arraycopy(gradients, 0, gradients, PERMUTATION_SIZE, PERMUTATION_SIZE);
+
+    mPermutationGradients = gradients;
+    mPermutation = permutation;
+  }
+
+  /**
+   * Randomly permute the first length elements of an array
+   */
+  private static void shuffle(int[] array, int length, Random r) {
+    for (int i = length - 1; i > 0; i--) {
+      int j = r.nextInt(i + 1);
+      int tmp = array[i];
+      array[i] = array[j];
+      array[j] = tmp;
+    }
   }
 
   public void setSeed(int seed) {
@@ -132,6 +324,10 @@ public class PerlinNoise {
 
   private float[] mGradients;
   private Interpolation mInterpolation = Interpolation.CUBIC;
+  private GradientSelection mGradientSelection = GradientSelection.HASH;
+  // If not null, the permutation table (and the gradient index for each of its entries)
+  private int[] mPermutation;
+  private int[] mPermutationGradients;
   private int mMaxGradients = 37;
   private int mSeed = 1;
 }
@@ -2,10 +2,13 @@ package com.js.camera;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 
 import com.js.basic.IPoint;
 
-import static com.js.basic.Tools.*;
+import java.io.IOException;
 
 public class PhotoAger {
 
@@ -14,14 +17,29 @@ public class PhotoAger {
   private static final boolean QUANTIZED_DIMENSIONS = true;
 
   /**
-   * Construct an ager for a photo
+   * Construct an ager for a photo.  The photo's record is not modified; once the aged
+   * JPEG has been stored, the caller should set its current age state to that
+   * returned by getAgeState()
    */
   public PhotoAger(PhotoInfo photoInfo, byte[] currentJPEG) {
     mPhotoInfo = photoInfo;
     mCurrentJPEG = currentJPEG;
+    mAgeState = photoInfo.getCurrentAgeState();
   }
 
-  public byte[] getAgedJPEG() {
+  /**
+   * Specify whether the photo should be aged one state at a time, with a full
+   * decode / encode for each; this reproduces the generational artifacts of repeated
+   * JPEG compression, at a cost proportional to the number of states.  By default,
+   * the photo is aged directly to its target state in a single pass
+   */
+  public void setPreserveIntermediateStates(boolean flag) {
+    if (mAged)
+      throw new IllegalStateException();
+    mPreserveIntermediateStates = flag;
+  }
+
+  public byte[] getAgedJPEG() throws IOException {
     if (!mAged) {
       constructAgedPhoto();
       mAged = true;
@@ -29,6 +47,13 @@ public class PhotoAger {
     return mCurrentJPEG;
   }
 
+  /**
+   * Get the age state of the JPEG returned by getAgedJPEG()
+   */
+  public int getAgeState() {
+    return mAgeState;
+  }
+
   private IPoint calcSizeForAge(int ageState) {
     float scale = (1.0f * (PhotoInfo.AGE_STATE_MAX - 1 - ageState) + (.3f * ageState)) / (PhotoInfo.AGE_STATE_MAX - 1);
     IPoint size = PhotoInfo.getLogicalMaximumSize(mIsPortrait);
@@ -58,46 +83,64 @@ public class PhotoAger {
     return scale;
   }
 
-  private void constructAgedPhoto() {
-
-    while (mPhotoInfo.getTargetAgeState() > mPhotoInfo.getCurrentAgeState()) {
-      Bitmap bitmap = BitmapFactory.decodeByteArray(mCurrentJPEG, 0, mCurrentJPEG.length);
-      if (bitmap == null)
-        die("Failed to decode jpeg");
-      mIsPortrait = BitmapTools.getOrientation(bitmap) == BitmapTools.ORIENTATION_PORTRAIT;
-
-      int newAge = mPhotoInfo.getCurrentAgeState() + 1;
-
-      // Scale bitmap to new size
-      IPoint newSize = calcSizeForAge(newAge);
-      Bitmap oldBitmap = bitmap;
-      bitmap = BitmapTools.scaleBitmapToFit(oldBitmap, newSize, false, true);
-      BitmapTools.recycleOldBitmapIfDifferent(oldBitmap, bitmap);
-
-      // Bleach out the colors a bit
-      {
-        float origScale = calcColorScaleForAge(mPhotoInfo.getCurrentAgeState());
-        float newScale = calcColorScaleForAge(newAge);
-        if (origScale > 0) {
-          float colorScale = newScale / origScale;
-          byte[] yuv = BitmapTools.getYUV420SP(bitmap, null);
-          BitmapTools.recycle(bitmap);
-          BitmapTools.scaleYUV420SP(yuv, newSize, 1.0f, colorScale, colorScale);
-          int[] argb = BitmapTools.decodeYUV420SP(null, yuv, newSize);
-          bitmap = Bitmap.createBitmap(argb, newSize.x, newSize.y, Bitmap.Config.ARGB_8888);
-        }
-      }
+  private void constructAgedPhoto() throws IOException {
+    while (mPhotoInfo.getTargetAgeState() > mAgeState) {
+      int newAge = mPhotoInfo.getTargetAgeState();
+      if (mPreserveIntermediateStates)
+        newAge = mAgeState + 1;
+      ageToState(newAge);
+    }
+  }
+
+  /**
+   * Transform the current JPEG from its current age state to a later one, with a
+   * single decode and encode.  The size and JPEG quality depend only upon the new
+   * state, and the per-state color scales compose to the ratio of the new and
+   * current states' scales; so this produces the composite of the intermediate steps
+   * (without their compression artifacts)
+   */
+  private void ageToState(int newAge) throws IOException {
+    BitmapPool pool = BitmapPool.sharedInstance();
+    // Decode to a mutable (and if possible, recycled) bitmap, so it can be bleached in place
+    Bitmap bitmap = pool.decodeByteArray(mCurrentJPEG, new BitmapFactory.Options());
+    if (bitmap == null)
+      throw new IOException("Failed to decode jpeg");
+    mIsPortrait = BitmapTools.getOrientation(bitmap) == BitmapTools.ORIENTATION_PORTRAIT;
+
+    // Scale bitmap to new size
+    IPoint newSize = calcSizeForAge(newAge);
+    if (bitmap.getWidth() != newSize.x || bitmap.getHeight() != newSize.y) {
+      Bitmap scaled = pool.getBitmap(newSize.x, newSize.y);
+      new Canvas(scaled).drawBitmap(bitmap, null, new Rect(0, 0, newSize.x, newSize.y),
+          new Paint(Paint.FILTER_BITMAP_FLAG));
+      pool.recycle(bitmap);
+      bitmap = scaled;
+    }
 
-      // Convert back to JPEG array of bytes
-      mCurrentJPEG = BitmapTools.encodeJPEG(bitmap, calcJPEGQualityForAge(newAge));
-      bitmap.recycle();
-      mPhotoInfo.setCurrentAgeState(newAge);
+    // Bleach out the colors a bit
+    {
+      float origScale = calcColorScaleForAge(mAgeState);
+      float newScale = calcColorScaleForAge(newAge);
+      if (origScale > 0) {
+        float colorScale = newScale / origScale;
+        int[] pixels = pool.getIntBuffer(bitmap.getWidth() * bitmap.getHeight());
+        bitmap = BitmapTools.bleachBitmap(bitmap, colorScale, pixels);
+        pool.recycle(pixels);
+      }
     }
+
+    // Convert back to JPEG array of bytes
+    mCurrentJPEG = BitmapTools.encodeJPEG(bitmap, calcJPEGQualityForAge(newAge));
+    pool.recycle(bitmap);
+    mAgeState = newAge;
   }
 
   private PhotoInfo mPhotoInfo;
+  // Age state of mCurrentJPEG
+  private int mAgeState;
   private boolean mIsPortrait;
   private byte[] mCurrentJPEG;
   private boolean mAged;
+  private boolean mPreserveIntermediateStates;
 
 }
@@ -0,0 +1,161 @@
+package com.js.camera;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.js.basic.Tools.*;
+import static com.js.android.AndroidTools.*;
+
+/**
+ * Ages overdue photos in the background, one at a time, so that displaying a
+ * photo never has to wait for it to be aged.
+ * <p/>
+ * Aging runs on the CPU pool at MAINTENANCE priority, so it only proceeds when no
+ * more important work is queued.  While the device is charging, it continues until
+ * every queued photo has been aged; on battery, it stops once it has spent its
+ * budget of processing time, and resumes the next time it is started (see
+ * PhotoFile.resumeAging()).
+ */
+class PhotoAgingScheduler {
+
+  // Milliseconds of aging work allowed per start() while running on battery
+  private static final int BATTERY_BUDGET_MS = 4000;
+
+  public PhotoAgingScheduler(Context context, PhotoFile photoFile) {
+    mContext = context.getApplicationContext();
+    mPhotoFile = photoFile;
+    mQueue = new LinkedHashMap<Integer, PhotoInfo>();
+  }
+
+  /**
+   * Add a photo to the queue of those needing aging
+   */
+  public synchronized void add(PhotoInfo photo) {
+    mQueue.put(photo.getId(), photo);
+  }
+
+  /**
+   * Start aging the queued photos, if not already doing so.  Resets the
+   * battery budget
+   */
+  public void start() {
+    assertUIThread();
+    mBudgetRemainingMs = BATTERY_BUDGET_MS;
+    if (mRunning)
+      return;
+    startNextPhoto();
+  }
+
+  /**
+   * Stop aging photos, and discard the queue; a photo that is being aged is allowed
+   * to finish, but no others will be started.  Called when the PhotoFile is closing
+   */
+  public void stop() {
+    assertUIThread();
+    mStopped = true;
+    synchronized (this) {
+      mQueue.clear();
+    }
+  }
+
+  private void startNextPhoto() {
+    if (mStopped)
+      return;
+    PhotoInfo photo = nextPhoto();
+    if (photo == null)
+      return;
+    if (mBudgetRemainingMs <= 0 && !isCharging()) {
+      trace("budget spent; postponing aging of " + photo);
+      return;
+    }
+    mRunning = true;
+    TaskSequence t = new AgePhotoTask(photo);
+    t.start();
+  }
+
+  private synchronized PhotoInfo nextPhoto() {
+    Iterator<PhotoInfo> iter = mQueue.values().iterator();
+    while (iter.hasNext()) {
+      PhotoInfo photo = iter.next();
+      if (photo.getTargetAgeState() > photo.getCurrentAgeState())
+        return photo;
+      iter.remove();
+    }
+    return null;
+  }
+
+  private synchronized void remove(PhotoInfo photo) {
+    mQueue.remove(photo.getId());
+  }
+
+  private boolean isCharging() {
+    Intent batteryStatus = mContext.registerReceiver(null,
+        new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    if (batteryStatus == null)
+      return false;
+    return batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+  }
+
+  private class AgePhotoTask extends TaskSequence {
+
+    public AgePhotoTask(PhotoInfo photo) {
+      mPhoto = photo;
+      setBgndPool(AppState.BgndPool.CPU);
+      setPriority(AppState.Priority.MAINTENANCE);
+    }
+
+    @Override
+    protected void execute(int stageNumber) {
+      switch (stageNumber) {
+        case 0: {
+          long startTime = SystemClock.elapsedRealtime();
+          mAged = mPhotoFile.agePhoto(mPhoto);
+          mElapsedMs = (int) (SystemClock.elapsedRealtime() - startTime);
+        }
+        break;
+        case 1:
+          remove(mPhoto);
+          mBudgetRemainingMs -= mElapsedMs;
+          if (mAged)
+            mPhotoFile.photoAged(mPhoto);
+          mRunning = false;
+          startNextPhoto();
+          finish();
+          break;
+      }
+    }
+
+    private final PhotoInfo mPhoto;
+    private boolean mAged;
+    private int mElapsedMs;
+  }
+
+  @SuppressWarnings("UnusedDeclaration")
+  public void setTrace(boolean state) {
+    mTrace = state;
+    if (state)
+      warning("Turning tracing on");
+  }
+
+  private void trace(Object msg) {
+    if (mTrace)
+      pr("--      PhotoAgingScheduler --: " + msg);
+  }
+
+  private final Context mContext;
+  private final PhotoFile mPhotoFile;
+  // Photos needing aging, keyed by id, in the order they were added
+  private final Map<Integer, PhotoInfo> mQueue;
+  private boolean mTrace;
+  // These fields are only accessed by the UI thread
+  private boolean mRunning;
+  private boolean mStopped;
+  private int mBudgetRemainingMs;
+}
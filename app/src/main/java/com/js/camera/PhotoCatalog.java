@@ -0,0 +1,303 @@
+package com.js.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static com.js.basic.Tools.*;
+
+/**
+ * A binary catalog of PhotoInfo records, stored in a single memory-mapped file.
+ * <p/>
+ * The file consists of a header followed by fixed-length records.  New records are
+ * appended; modified or deleted records are patched in place.  Opening the catalog
+ * is a single sequential pass over the mapped file, regardless of the number of photos.
+ * <p/>
+ * Thread safe.
+ */
+class PhotoCatalog {
+
+  // 'PHCT'
+  private static final int MAGIC = 0x50484354;
+  private static final int VERSION = 1;
+
+  // Header: magic, version, number of records, (reserved)
+  private static final int HEADER_SIZE = 4 * 4;
+  private static final int HEADER_OFFSET_RECORD_COUNT = 8;
+
+  // Record: id, created, currentstate, desiredstate, checksum
+  private static final int RECORD_SIZE = 5 * 4;
+
+  // Number of records to grow the mapped region by when it fills up
+  private static final int CAPACITY_INCREMENT = 256;
+
+  // A record with this id has been deleted
+  private static final int DELETED_ID = 0;
+
+  public PhotoCatalog(File file) {
+    mFile = file;
+    mSlotMap = new HashMap<Integer, Integer>();
+  }
+
+  public File getFile() {
+    return mFile;
+  }
+
+  /**
+   * Open the catalog, creating it if it doesn't exist
+   *
+   * @return the PhotoInfo records it contains
+   */
+  public synchronized List<PhotoInfo> open() throws IOException {
+    if (mBuffer != null)
+      throw new IllegalStateException();
+
+    boolean exists = mFile.exists();
+    mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+    mChannel = mRandomAccessFile.getChannel();
+
+    if (!exists || mChannel.size() < HEADER_SIZE) {
+      mapRegion(CAPACITY_INCREMENT);
+      writeHeader();
+      setRecordCount(0);
+      return new ArrayList<PhotoInfo>();
+    }
+
+    int capacity = (int) ((mChannel.size() - HEADER_SIZE) / RECORD_SIZE);
+    mapRegion(capacity);
+    if (mBuffer.getInt(0) != MAGIC)
+      throw new IOException("Bad catalog magic number: " + mFile);
+    if (mBuffer.getInt(4) != VERSION)
+      throw new IOException("Unsupported catalog version: " + mBuffer.getInt(4));
+    mRecordCount = mBuffer.getInt(HEADER_OFFSET_RECORD_COUNT);
+    if (mRecordCount < 0 || mRecordCount > capacity)
+      throw new IOException("Bad catalog record count: " + mRecordCount);
+
+    List<PhotoInfo> photos = new ArrayList<PhotoInfo>(mRecordCount);
+    int deletedCount = 0;
+    for (int slot = 0; slot < mRecordCount; slot++) {
+      PhotoInfo info = readRecord(slot);
+      if (info == null) {
+        deletedCount++;
+        continue;
+      }
+      photos.add(info);
+      mSlotMap.put(info.getId(), slot);
+    }
+
+    // If most of the catalog is occupied by deleted records, rewrite it
+    if (deletedCount > CAPACITY_INCREMENT && deletedCount > photos.size())
+      compact(photos);
+
+    return photos;
+  }
+
+  /**
+   * Read all the PhotoInfo records from an open catalog
+   */
+  public synchronized List<PhotoInfo> readAll() {
+    assertOpen();
+    List<PhotoInfo> photos = new ArrayList<PhotoInfo>(mSlotMap.size());
+    for (int slot = 0; slot < mRecordCount; slot++) {
+      PhotoInfo info = readRecord(slot);
+      if (info != null)
+        photos.add(info);
+    }
+    return photos;
+  }
+
+  /**
+   * Force any changes to the catalog to be written to the storage device
+   */
+  public synchronized void flush() {
+    if (mBuffer != null)
+      mBuffer.force();
+  }
+
+  public synchronized void close() throws IOException {
+    if (mBuffer == null)
+      return;
+    flush();
+    mBuffer = null;
+    mChannel = null;
+    mRandomAccessFile.close();
+    mRandomAccessFile = null;
+    mSlotMap.clear();
+  }
+
+  /**
+   * Append a record for a new photo
+   */
+  public synchronized void append(PhotoInfo info) throws IOException {
+    assertOpen();
+    if (mSlotMap.containsKey(info.getId()))
+      throw new IllegalArgumentException("Photo already in catalog: " + info);
+    int slot = mRecordCount;
+    if (slot == mCapacity)
+      mapRegion(mCapacity + CAPACITY_INCREMENT);
+    writeRecord(slot, info);
+    mSlotMap.put(info.getId(), slot);
+    setRecordCount(slot + 1);
+  }
+
+  /**
+   * Write an existing photo's record in place, or append it if it is not in the catalog
+   */
+  public synchronized void write(PhotoInfo info) throws IOException {
+    assertOpen();
+    Integer slot = mSlotMap.get(info.getId());
+    if (slot == null) {
+      append(info);
+      return;
+    }
+    writeRecord(slot, info);
+  }
+
+  /**
+   * Mark a photo's record as deleted; does nothing if no such photo exists
+   */
+  public synchronized void delete(int photoId) {
+    assertOpen();
+    Integer slot = mSlotMap.remove(photoId);
+    if (slot == null)
+      return;
+    int offset = recordOffset(slot);
+    for (int i = 0; i < RECORD_SIZE; i += 4)
+      mBuffer.putInt(offset + i, 0);
+  }
+
+  private void assertOpen() {
+    if (mBuffer == null)
+      throw new IllegalStateException("Catalog not open");
+  }
+
+  private static int recordOffset(int slot) {
+    return HEADER_SIZE + slot * RECORD_SIZE;
+  }
+
+  /**
+   * Map the file, with room for a particular number of records; extends the file if necessary
+   */
+  private void mapRegion(int capacity) throws IOException {
+    long length = recordOffset(capacity);
+    if (mRandomAccessFile.length() < length)
+      mRandomAccessFile.setLength(length);
+    mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    mCapacity = capacity;
+  }
+
+  private void writeHeader() {
+    mBuffer.putInt(0, MAGIC);
+    mBuffer.putInt(4, VERSION);
+  }
+
+  private void setRecordCount(int count) {
+    mRecordCount = count;
+    mBuffer.putInt(HEADER_OFFSET_RECORD_COUNT, count);
+  }
+
+  /**
+   * Read record from a slot
+   *
+   * @return PhotoInfo, or null if record was deleted or is corrupt
+   */
+  private PhotoInfo readRecord(int slot) {
+    int offset = recordOffset(slot);
+    int id = mBuffer.getInt(offset);
+    if (id == DELETED_ID)
+      return null;
+    int created = mBuffer.getInt(offset + 4);
+    int currentState = mBuffer.getInt(offset + 8);
+    int desiredState = mBuffer.getInt(offset + 12);
+    int checksum = mBuffer.getInt(offset + 16);
+    if (checksum != calcChecksum(id, created, currentState, desiredState)
+        || id < 0 || currentState > desiredState) {
+      warning("Skipping corrupt catalog record #" + slot + " in " + mFile);
+      return null;
+    }
+    PhotoInfo info = PhotoInfo.create();
+    info.setId(id);
+    info.setCreationTime(created);
+    info.setCurrentAgeState(currentState);
+    info.setTargetAgeState(desiredState);
+    return info;
+  }
+
+  private void writeRecord(int slot, PhotoInfo info) {
+    int offset = recordOffset(slot);
+    ByteBuffer b = mBuffer;
+    b.putInt(offset, info.getId());
+    b.putInt(offset + 4, info.getCreationTime());
+    b.putInt(offset + 8, info.getCurrentAgeState());
+    b.putInt(offset + 12, info.getTargetAgeState());
+    b.putInt(offset + 16, calcChecksum(info.getId(), info.getCreationTime(),
+        info.getCurrentAgeState(), info.getTargetAgeState()));
+  }
+
+  private int calcChecksum(int id, int created, int currentState, int desiredState) {
+    CRC32 crc = mChecksum;
+    crc.reset();
+    updateChecksum(crc, id);
+    updateChecksum(crc, created);
+    updateChecksum(crc, currentState);
+    updateChecksum(crc, desiredState);
+    return (int) crc.getValue();
+  }
+
+  private static void updateChecksum(CRC32 crc, int value) {
+    crc.update(value >>> 24);
+    crc.update(value >>> 16);
+    crc.update(value >>> 8);
+    crc.update(value);
+  }
+
+  /**
+   * Rewrite the catalog so it contains only the live records.  The compacted catalog
+   * is built in a temporary file, which replaces the original only once it has been
+   * written to the storage device; so a crash leaves one or the other intact
+   */
+  private void compact(List<PhotoInfo> photos) throws IOException {
+    warning("Compacting catalog " + mFile + " to " + photos.size() + " records");
+    File tempFile = new File(mFile.getPath() + ".tmp");
+    tempFile.delete();
+
+    mBuffer = null;
+    mChannel = null;
+    mRandomAccessFile.close();
+    mRandomAccessFile = new RandomAccessFile(tempFile, "rw");
+    mChannel = mRandomAccessFile.getChannel();
+    mapRegion(photos.size() + CAPACITY_INCREMENT);
+    writeHeader();
+    mSlotMap.clear();
+    for (int slot = 0; slot < photos.size(); slot++) {
+      PhotoInfo info = photos.get(slot);
+      writeRecord(slot, info);
+      mSlotMap.put(info.getId(), slot);
+    }
+    setRecordCount(photos.size());
+    mBuffer.force();
+    mChannel.force(true);
+
+    // The open file (and its mapping) now refers to the catalog
+    if (!tempFile.renameTo(mFile))
+      throw new IOException("unable to rename " + tempFile);
+  }
+
+  private final File mFile;
+  // Maps photo ids to their record slots
+  private final Map<Integer, Integer> mSlotMap;
+  private final CRC32 mChecksum = new CRC32();
+  private RandomAccessFile mRandomAccessFile;
+  private FileChannel mChannel;
+  private MappedByteBuffer mBuffer;
+  private int mCapacity;
+  private int mRecordCount;
+}
@@ -3,16 +3,18 @@ package com.js.camera;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
+import android.net.Uri;
 import android.os.Environment;
 import android.widget.ImageView;
 
 import com.js.basic.Files;
 import com.js.basic.IPoint;
 import com.js.basic.JSONTools;
-import com.squareup.picasso.MemoryPolicy;
+import com.squareup.picasso.LruCache;
 import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Request;
 import com.squareup.picasso.RequestCreator;
+import com.squareup.picasso.RequestHandler;
 import com.squareup.picasso.Transformation;
 
 import org.apache.commons.io.FileUtils;
@@ -23,7 +25,6 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -57,8 +58,13 @@ public class PhotoFile extends Observable {
 
   public static enum Event {
     StateChanged,
+    // A photo's JPEG has been stored, but not yet processed; the arguments are its
+    // id, and the tag passed to createPhoto()
+    PhotoCaptured,
+    // The arguments are the photo's PhotoInfo, and the tag passed to createPhoto()
     PhotoCreated,
     PhotoDeleted,
+    PhotoAged,
   }
 
   public PhotoFile() {
@@ -101,6 +107,7 @@ public class PhotoFile extends Observable {
           if (failure()) break;
           readPhotoRecords();
           if (failure()) break;
+          findPendingPhotos();
           updatePhotoAges();
           if (failure()) break;
         }
@@ -113,6 +120,11 @@ public class PhotoFile extends Observable {
           }
           setState(State.Open);
           notifyEventObservers(Event.StateChanged);
+          mAgingScheduler.start();
+          // Resume processing any photos that were captured, but not processed,
+          // before the file was last closed
+          for (File pendingFile : mPendingFiles)
+            new CreatePhotoTask(pendingFile, null).start();
           finish();
           break;
       }
@@ -140,6 +152,11 @@ public class PhotoFile extends Observable {
           }
           readFileState();
         }
+        mTextureCache = new NoiseTextureCache(new File(mRootDirectory, "textures"), mRandomSeed);
+        mThumbnailStore = new ThumbnailStore(new File(mRootDirectory, "thumbnails"));
+        mPendingDirectory = new File(mRootDirectory, "pending");
+        if (!mPendingDirectory.exists() && !mPendingDirectory.mkdir())
+          throw new IOException("unable to create " + mPendingDirectory);
         trace("Opened root directory " + mRootDirectory);
       } catch (IOException e) {
         mFailMessage = "preparing root; " + d(e);
@@ -161,7 +178,7 @@ public class PhotoFile extends Observable {
       }
     }
 
-    private void restoreOriginalVersions() {
+    private void restoreOriginalVersions(List<PhotoInfo> photos) {
       File[] fList = mRootDirectory.listFiles();
       for (File file : fList) {
         if (!file.isFile()) continue;
@@ -183,14 +200,18 @@ public class PhotoFile extends Observable {
         }
         try {
           File photoInfoPathOriginal = getPhotoInfoPath(id, true);
-          File photoInfoPath = getPhotoInfoPath(id, false);
           File photoBitmapPath = getPhotoBitmapPath(id, false);
           if (!photoInfoPathOriginal.exists()) {
             warning("no original path found: " + photoInfoPathOriginal);
             continue;
           }
           FileUtils.copyFile(getPhotoBitmapPath(id, true), photoBitmapPath);
-          FileUtils.copyFile(photoInfoPathOriginal, photoInfoPath);
+          PhotoInfo original = PhotoInfo.parseJSON(Files.readString(photoInfoPathOriginal));
+          writePhotoInfo(original);
+          for (int i = 0; i < photos.size(); i++) {
+            if (photos.get(i).getId() == id)
+              photos.set(i, original);
+          }
         } catch (Throwable t) {
           warning("Failed to read or parse " + file);
         }
@@ -200,11 +221,54 @@ public class PhotoFile extends Observable {
     private void readPhotoRecords() {
       mPhotoSet.clear();
 
-      File[] fList = mRootDirectory.listFiles();
+      List<PhotoInfo> photos;
+      try {
+        File catalogFile = getCatalogFile();
+        if (!catalogFile.exists())
+          migrateJSONRecords(catalogFile);
+        mCatalog = new PhotoCatalog(catalogFile);
+        photos = mCatalog.open();
+        mJournal = new PhotoJournal(getJournalFile(), mCatalog);
+        boolean journalExists = getJournalFile().exists();
+        if (mJournal.replay() != 0) {
+          photos = mCatalog.readAll();
+          if (mJournal.getNextPhotoId() > mNextPhotoId) {
+            mNextPhotoId = mJournal.getNextPhotoId();
+            mModified = true;
+          }
+        }
+        // Start with an empty journal, even if it held nothing that could be replayed
+        if (journalExists)
+          checkpoint();
+      } catch (IOException e) {
+        mFailMessage = "reading catalog; " + d(e);
+        return;
+      }
+
       if (START_WITH_ORIGINAL) {
-        restoreOriginalVersions();
+        restoreOriginalVersions(photos);
+      }
+
+      for (PhotoInfo photoInfo : photos) {
+        if (KEEP_ORIGINAL_COPIES)
+          createOriginalIfNecessary(photoInfo);
+        mPhotoSet.add(photoInfo);
       }
+    }
 
+    /**
+     * Construct the catalog from the per-photo .json files written by earlier versions
+     * of the app, then delete those files.  The catalog is built under a temporary name
+     * and renamed once complete, so an interrupted migration is repeated on the next open
+     */
+    private void migrateJSONRecords(File catalogFile) throws IOException {
+      File tempFile = new File(mRootDirectory, CATALOG_FILENAME + ".tmp");
+      tempFile.delete();
+      PhotoCatalog catalog = new PhotoCatalog(tempFile);
+      catalog.open();
+
+      List<File> migratedFiles = new ArrayList<File>();
+      File[] fList = mRootDirectory.listFiles();
       for (File file : fList) {
         if (file.isFile()) {
           String fileStr = file.getName();
@@ -224,65 +288,62 @@ public class PhotoFile extends Observable {
             warning("Skipping illegal photo id: " + id + " from " + fileStr);
             continue;
           }
+          File photoInfoPath = getPhotoInfoPath(id, false);
           PhotoInfo photoInfo;
           try {
-            File photoInfoPath = getPhotoInfoPath(id, false);
             String jsonString = Files.readString(photoInfoPath);
             photoInfo = PhotoInfo.parseJSON(jsonString);
-            if (KEEP_ORIGINAL_COPIES)
-              createOriginalIfNecessary(photoInfo);
           } catch (Throwable t) {
             warning("Failed to read or parse " + file);
             continue;
           }
-          mPhotoSet.add(photoInfo);
+          catalog.append(photoInfo);
+          migratedFiles.add(photoInfoPath);
         }
       }
+      catalog.close();
+
+      if (!tempFile.renameTo(catalogFile))
+        throw new IOException("unable to rename " + tempFile + " to " + catalogFile);
+      if (!migratedFiles.isEmpty())
+        trace("Migrated " + migratedFiles.size() + " photo records to " + catalogFile);
+      for (File file : migratedFiles)
+        file.delete();
     }
 
-    private void updatePhotoAges() {
-
-      final int SECONDS_PER_DAY = 24 * 3600;
-      final int SECONDS_PER_AGE_STATE = (PHOTO_LIFETIME_DAYS * SECONDS_PER_DAY) / PhotoInfo.AGE_STATE_MAX;
-
-      List<PhotoInfo> updatedPhotosList = new ArrayList<PhotoInfo>();
-      int currentTime = PhotoInfo.currentSecondsSinceEpoch();
-      for (PhotoInfo photo : mPhotoSet) {
-        int timeSinceCreated = currentTime - photo.getCreationTime();
-        if (timeSinceCreated < 0)
-          timeSinceCreated = 0;
-        int targetAge = Math.min(timeSinceCreated / SECONDS_PER_AGE_STATE, PhotoInfo.AGE_STATE_MAX);
-        if (targetAge != photo.getTargetAgeState()) {
-          trace(photo + " days since created " + (timeSinceCreated / SECONDS_PER_DAY)
-              + " new target " + targetAge + " currently " + photo.getTargetAgeState());
-
-          if (targetAge == PhotoInfo.AGE_STATE_MAX) {
-            File f = getPhotoInfoPath(photo.getId(), false);
-            f.delete();
-            f = getPhotoBitmapPath(photo.getId(), false);
-            f.delete();
-            continue;
-          }
-
-          if (targetAge > photo.getTargetAgeState()) {
-            photo.setTargetAgeState(targetAge);
-            trace("updating");
-            try {
-              writePhotoInfo(photo);
-            } catch (IOException e) {
-              mFailMessage = "writing photo info; " + d(e);
-              return;
-            }
-          }
+    /**
+     * Find the photos that were captured but not processed.  A pending file whose
+     * photo exists is left over from processing that was interrupted after the photo
+     * was recorded, and is deleted
+     */
+    private void findPendingPhotos() {
+      File[] files = mPendingDirectory.listFiles();
+      if (files == null)
+        return;
+      for (File file : files) {
+        int[] idAndRotation = parsePendingPhotoPath(file);
+        if (idAndRotation == null) {
+          // Possibly a partially written file
+          file.delete();
+          continue;
+        }
+        if (getPhoto(idAndRotation[0]) != null) {
+          file.delete();
+          continue;
         }
-        updatedPhotosList.add(photo);
+        // The id was reserved before the file was written, but guard against its reuse
+        if (idAndRotation[0] >= mNextPhotoId) {
+          mNextPhotoId = idAndRotation[0] + 1;
+          mModified = true;
+        }
+        trace("Found pending photo " + file);
+        mPendingFiles.add(file);
       }
-      mPhotoSet.clear();
-      mPhotoSet.addAll(updatedPhotosList);
     }
 
     private String mFailMessage;
     private final Context mContext;
+    private final List<File> mPendingFiles = new ArrayList<File>();
   }
 
   public void open(Context context) {
@@ -294,6 +355,12 @@ public class PhotoFile extends Observable {
 
     setState(State.Opening);
 
+    mContext = context.getApplicationContext();
+    mPicasso = new Picasso.Builder(mContext)
+        .memoryCache(new LruCache(MemoryBudget.pictureCacheBytes()))
+        .addRequestHandler(new ThumbnailRequestHandler())
+        .build();
+    mAgingScheduler = new PhotoAgingScheduler(context, this);
     TaskSequence t = new OpenPhotoFileTask(context);
     t.start();
   }
@@ -308,10 +375,17 @@ public class PhotoFile extends Observable {
       switch (stageNumber) {
         case 0: {
           trace("CloseFile");
-          try {
-            flush();
-          } catch (IOException e) {
-            mFailMessage = "closing file; " + d(e);
+          // No mutations are accepted once mClosing is set, so any that are in progress
+          // will have finished by the time we hold the lock
+          synchronized (mMetadataLock) {
+            try {
+              flush();
+              checkpoint();
+              mCatalog.close();
+            } catch (IOException e) {
+              mFailMessage = "closing file; " + d(e);
+            }
+            mMetadataClosed = true;
           }
         }
         break;
@@ -338,7 +412,13 @@ public class PhotoFile extends Observable {
       return;
 
     setState(State.Closing);
-    TaskSequence t = new ClosePhotoFileTask();
+    mClosing = true;
+    mAgingScheduler.stop();
+    // The close task commits any pending mutations itself
+    AppState.cancelUIEvent(mScheduleCommitRunnable);
+    if (mCommitEvent != null)
+      AppState.cancelBgndEvent(AppState.BgndPool.IO, mCommitEvent);
+    TaskSequence t = new ClosePhotoFileTask().setPriority(AppState.Priority.MAINTENANCE);
     t.start();
   }
 
@@ -359,11 +439,18 @@ public class PhotoFile extends Observable {
     return mFailureMessage;
   }
 
-  private class CreatePhotoTask extends TaskSequence {
-    public CreatePhotoTask(byte[] jpegData, IPoint imageSize, int rotationToApply) {
+  /**
+   * First phase of creating a photo: reserve its id, and durably store the camera's
+   * JPEG in the pending directory.  Then start the second phase, CreatePhotoTask
+   */
+  private class CapturePhotoTask extends TaskSequence {
+    public CapturePhotoTask(byte[] jpegData, int rotationToApply, Object tag) {
       mJPEGData = jpegData;
-      mImageSize = imageSize;
       mRotationToApply = rotationToApply;
+      mTag = tag;
+      // This is just a file write
+      setBgndPool(AppState.BgndPool.IO);
+      setPriority(AppState.Priority.CAPTURE);
     }
 
     @Override
@@ -371,39 +458,132 @@ public class PhotoFile extends Observable {
       switch (stageNumber) {
         case 0:
           try {
-            BitmapFactory.Options opt;
+            mPhotoId = getUniquePhotoId();
+            mPendingFile = getPendingPhotoPath(mPhotoId, mRotationToApply);
+            trace("Writing captured JPEG to " + mPendingFile);
+            // Write to a temporary file and rename it, so a partially written file is never
+            // mistaken for a pending photo
+            File tempFile = new File(mPendingFile.getPath() + ".tmp");
+            FileOutputStream stream = new FileOutputStream(tempFile);
+            try {
+              stream.write(mJPEGData);
+              stream.getFD().sync();
+            } finally {
+              stream.close();
+            }
+            if (!tempFile.renameTo(mPendingFile))
+              throw new IOException("unable to rename " + tempFile);
+            mJPEGData = null;
+            // Commit the id's reservation, so it can't be reused
+            flush();
+          } catch (IOException e) {
+            mFailMessage = "capture photo; " + d(e);
+          }
+          break;
+        case 1:
+          if (mFailMessage != null) {
+            // Being interrupted by close() is not a failure of the file; a pending JPEG
+            // is processed when the file is next opened
+            if (mClosing)
+              warning(mFailMessage);
+            else
+              setFailed(mFailMessage);
+            abort();
+          } else {
+            notifyEventObservers(Event.PhotoCaptured, mPhotoId, mTag);
+            new CreatePhotoTask(mPendingFile, mTag).start();
+            finish();
+          }
+          break;
+      }
+    }
+
+    private String mFailMessage;
+    private byte[] mJPEGData;
+    private int mRotationToApply;
+    private final Object mTag;
+    private int mPhotoId;
+    private File mPendingFile;
+  }
+
+  /**
+   * Second phase of creating a photo: scale and rotate a pending photo's JPEG, store
+   * the result as the photo's bitmap, and record the photo
+   */
+  private class CreatePhotoTask extends TaskSequence {
+    public CreatePhotoTask(File pendingFile, Object tag) {
+      mPendingFile = pendingFile;
+      mTag = tag;
+      // Decoding, scaling and encoding the image is CPU-bound work
+      setBgndPool(AppState.BgndPool.CPU);
+      setPriority(AppState.Priority.CAPTURE);
+    }
+
+    @Override
+    protected void execute(int stageNumber) {
+      switch (stageNumber) {
+        case 0:
+          try {
+            int[] idAndRotation = parsePendingPhotoPath(mPendingFile);
+            int photoId = idAndRotation[0];
+            int rotationToApply = idAndRotation[1];
+            byte[] jpegData = FileUtils.readFileToByteArray(mPendingFile);
+
+            BitmapPool pool = BitmapPool.sharedInstance();
             Bitmap bitmap;
             {
-              opt = new BitmapFactory.Options();
-              opt.inTempStorage = new byte[16 * 1024];
-
-              float mb = (mImageSize.x * mImageSize.y) / 1024000.0f;
-
-              if (mb > 4f)
-                opt.inSampleSize = 4;
-              else if (mb > 3f)
-                opt.inSampleSize = 2;
-              bitmap = BitmapFactory.decodeByteArray(mJPEGData, 0, mJPEGData.length, opt);
-              mJPEGData = null;
-              trace("Image size " + mImageSize + ", inSampleSize " + opt.inSampleSize + ", Bitmap size " + BitmapTools.size(bitmap));
+              // Decode at the lowest resolution that still covers our maximum size;
+              // the size is chosen according to the (unrotated) camera image's orientation
+              DecodePlanner plan = DecodePlanner.forJPEG(jpegData);
+              IPoint imageSize = plan.getImageSize();
+              plan.planFit(PhotoInfo.getLogicalMaximumSize(imageSize.x <= imageSize.y));
+
+              BitmapFactory.Options opt = new BitmapFactory.Options();
+              opt.inTempStorage = pool.getByteBuffer(16 * 1024);
+              opt.inSampleSize = plan.getSampleSize();
+              Bitmap decoded = pool.decodeByteArray(jpegData, opt);
+              pool.recycle(opt.inTempStorage);
+              jpegData = null;
+              if (decoded == null)
+                throw new IOException("unable to decode " + mPendingFile);
+              trace("Image size " + imageSize + ", inSampleSize " + opt.inSampleSize
+                  + ", Bitmap size " + BitmapTools.size(decoded));
+
+              // Apply the residual scaling and the rotation as a single transformation,
+              // into a pooled bitmap
+              IPoint outputSize = BitmapTools.calcTransformedSize(BitmapTools.size(decoded),
+                  plan.getOutputSize(), rotationToApply);
+              if (rotationToApply == 0 && outputSize.x == decoded.getWidth()
+                  && outputSize.y == decoded.getHeight()) {
+                bitmap = decoded;
+              } else {
+                bitmap = BitmapTools.transformBitmap(decoded, plan.getOutputSize(),
+                    rotationToApply, false, pool.getBitmap(outputSize.x, outputSize.y));
+                pool.recycle(decoded);
+              }
             }
 
-            // Scale bitmap down to our maximum size, if it's larger;
-            // do this before rotating!
-            boolean isPortrait = BitmapTools.getOrientation(bitmap) == BitmapTools.ORIENTATION_PORTRAIT;
-            Bitmap oldBitmap = bitmap;
-            bitmap = BitmapTools.scaleBitmapToFit(oldBitmap, PhotoInfo.getLogicalMaximumSize(isPortrait), true, true);
-            oldBitmap = BitmapTools.recycleOldBitmapIfDifferent(oldBitmap, bitmap);
-            bitmap = BitmapTools.rotateBitmap(bitmap, mRotationToApply);
-            BitmapTools.recycleOldBitmapIfDifferent(oldBitmap, bitmap);
-
-            PhotoInfo info = createPhotoInfo();
-
-            File photoPath = getPhotoBitmapPath(info.getId(), false);
-            trace("Writing " + info + " to " + photoPath);
-            OutputStream stream = new FileOutputStream(photoPath);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, PhotoInfo.JPEG_QUALITY_MAX, stream);
-            bitmap.recycle();
+            File photoPath = getPhotoBitmapPath(photoId, false);
+            trace("Writing photo " + photoId + " to " + photoPath);
+            // Write to a temporary file and rename it, so the photo is never seen partially
+            // written; the pending file must survive until the bitmap is durably stored
+            File tempFile = new File(photoPath.getPath() + ".tmp");
+            FileOutputStream stream = new FileOutputStream(tempFile);
+            try {
+              bitmap.compress(Bitmap.CompressFormat.JPEG, PhotoInfo.JPEG_QUALITY_MAX, stream);
+              stream.getFD().sync();
+            } finally {
+              stream.close();
+            }
+            if (!tempFile.renameTo(photoPath))
+              throw new IOException("unable to rename " + tempFile);
+
+            PhotoInfo info = createPhotoInfo(photoId);
+            generateThumbnails(info, info.getCurrentAgeState(), bitmap, null);
+            pool.recycle(bitmap);
+            // Commit the photo's record before discarding the pending file
+            flush();
+            mPendingFile.delete();
             mPhotoInfo = info;
           } catch (IOException e) {
             mFailMessage = "create photo; " + d(e);
@@ -411,10 +591,15 @@ public class PhotoFile extends Observable {
           break;
         case 1:
           if (mFailMessage != null) {
-            setFailed(mFailMessage);
+            // Being interrupted by close() is not a failure of the file; a pending JPEG
+            // is processed when the file is next opened
+            if (mClosing)
+              warning(mFailMessage);
+            else
+              setFailed(mFailMessage);
             abort();
           } else {
-            notifyEventObservers(Event.PhotoCreated, mPhotoInfo);
+            notifyEventObservers(Event.PhotoCreated, mPhotoInfo, mTag);
             finish();
           }
           break;
@@ -423,14 +608,26 @@ public class PhotoFile extends Observable {
 
     private PhotoInfo mPhotoInfo;
     private String mFailMessage;
-    private byte[] mJPEGData;
-    private IPoint mImageSize;
-    private int mRotationToApply;
+    private final File mPendingFile;
+    private final Object mTag;
   }
 
-  public void createPhoto(final byte[] jpegData, final IPoint imageSize, final int rotationToApply) {
+  /**
+   * Create a photo from a JPEG taken by the camera.  The JPEG is stored first, and
+   * PhotoCaptured is sent; it's then processed in the background, and PhotoCreated
+   * is sent once the photo is available
+   */
+  public void createPhoto(byte[] jpegData, int rotationToApply) {
+    createPhoto(jpegData, rotationToApply, null);
+  }
+
+  /**
+   * Create a photo, as createPhoto(jpegData, rotationToApply), with a tag that is
+   * passed along with its PhotoCaptured and PhotoCreated events
+   */
+  public void createPhoto(byte[] jpegData, int rotationToApply, Object tag) {
     assertOpen();
-    TaskSequence t = new CreatePhotoTask(jpegData, imageSize, rotationToApply);
+    TaskSequence t = new CapturePhotoTask(jpegData, rotationToApply, tag);
     t.start();
   }
 
@@ -470,23 +667,24 @@ public class PhotoFile extends Observable {
         case 0: {
           if (SIMULATE_DELETE_PHOTO) {
             warning("simulating deletion of photo");
+            synchronized (mPhotoSet) {
+              mPhotoSet.remove(mPhotoInfo);
+            }
             break;
           }
-          File infoPath = getPhotoInfoPath(mPhotoInfo.getId(), false);
-          File bitmapPath = getPhotoBitmapPath(mPhotoInfo.getId(), false);
-          infoPath.delete();
-          bitmapPath.delete();
+          mRemoved = removePhoto(mPhotoInfo);
         }
         break;
         case 1:
-          mPhotoSet.remove(mPhotoInfo);
-          notifyEventObservers(Event.PhotoDeleted, mPhotoInfo);
+          if (mRemoved)
+            notifyEventObservers(Event.PhotoDeleted, mPhotoInfo);
           finish();
           break;
       }
     }
 
     private final PhotoInfo mPhotoInfo;
+    private boolean mRemoved;
   }
 
   public void deletePhoto(PhotoInfo photoInfo, Runnable completionCallback) {
@@ -496,98 +694,349 @@ public class PhotoFile extends Observable {
     t.start();
   }
 
-  private Bitmap readBitmapFromFile(PhotoInfo mPhotoInfo) {
-    File photoPath = getPhotoBitmapPath(mPhotoInfo.getId(), false);
-    // Cut down on logging noise by omitting this:
-    //trace("Reading " + mPhotoInfo + " bitmap from " + photoPath.getName());
-    Bitmap bitmap = BitmapFactory.decodeFile(photoPath.getPath());
-    return bitmap;
+  /**
+   * Remove a photo from the set, and delete its record, bitmap and thumbnails.  The
+   * photo's lock is held throughout, so an aging pass can't write the photo back
+   * after it has been deleted
+   *
+   * @return false if the file is closing, and the photo wasn't removed
+   */
+  private boolean removePhoto(PhotoInfo photo) {
+    assertBgndThread();
+    synchronized (photo) {
+      synchronized (mMetadataLock) {
+        if (mClosing)
+          return false;
+        logMutation(mJournal.delete(photo.getId()));
+      }
+      synchronized (mPhotoSet) {
+        mPhotoSet.remove(photo);
+      }
+      getPhotoBitmapPath(photo.getId(), false).delete();
+      mThumbnailStore.deleteAll(photo.getId());
+    }
+    return true;
   }
 
-  private void agePhoto(PhotoInfo agedPhoto) {
-    trace(".........aging " + agedPhoto + " to target " + agedPhoto.getTargetAgeState());
+  /**
+   * Update the photos' target age states according to the current time, and queue
+   * those that are overdue for aging with the PhotoAgingScheduler; photos that have
+   * reached the end of their lifetime are deleted
+   *
+   * @return the photos that were deleted
+   */
+  private List<PhotoInfo> updatePhotoAges() {
+    assertBgndThread();
 
-    // Read current bitmap as JPEG
-    File photoPath = getPhotoBitmapPath(agedPhoto.getId(), false);
-    try {
-      byte[] jpeg = FileUtils.readFileToByteArray(photoPath);
-      PhotoAger ager = new PhotoAger(agedPhoto, jpeg);
-      jpeg = ager.getAgedJPEG();
-      FileUtils.writeByteArrayToFile(photoPath, jpeg);
-      writePhotoInfo(agedPhoto);
-      trace("writing aged version: " + agedPhoto);
-    } catch (IOException e) {
-      // TODO: figure out how to handle this gracefully
-      die(e);
+    final int SECONDS_PER_DAY = 24 * 3600;
+    final int SECONDS_PER_AGE_STATE = (PHOTO_LIFETIME_DAYS * SECONDS_PER_DAY) / PhotoInfo.AGE_STATE_MAX;
+
+    List<PhotoInfo> photos;
+    synchronized (mPhotoSet) {
+      photos = new ArrayList<PhotoInfo>(mPhotoSet);
     }
+    List<PhotoInfo> expiredPhotos = new ArrayList<PhotoInfo>();
+    int currentTime = PhotoInfo.currentSecondsSinceEpoch();
+    for (PhotoInfo photo : photos) {
+      int timeSinceCreated = currentTime - photo.getCreationTime();
+      if (timeSinceCreated < 0)
+        timeSinceCreated = 0;
+      int targetAge = Math.min(timeSinceCreated / SECONDS_PER_AGE_STATE, PhotoInfo.AGE_STATE_MAX);
+      if (targetAge != photo.getTargetAgeState()) {
+        trace(photo + " days since created " + (timeSinceCreated / SECONDS_PER_DAY)
+            + " new target " + targetAge + " currently " + photo.getTargetAgeState());
+
+        if (targetAge == PhotoInfo.AGE_STATE_MAX) {
+          if (!removePhoto(photo))
+            break;
+          expiredPhotos.add(photo);
+          continue;
+        }
+
+        if (targetAge > photo.getTargetAgeState()) {
+          trace("updating");
+          synchronized (photo) {
+            photo.setTargetAgeState(targetAge);
+            if (!writePhotoInfo(photo))
+              break;
+          }
+        }
+      }
+      if (photo.getTargetAgeState() > photo.getCurrentAgeState())
+        mAgingScheduler.add(photo);
+    }
+    return expiredPhotos;
+  }
+
+  private class UpdatePhotoAgesTask extends TaskSequence {
+    public UpdatePhotoAgesTask() {
+      setPriority(AppState.Priority.MAINTENANCE);
+    }
+
+    @Override
+    protected void execute(int stageNumber) {
+      switch (stageNumber) {
+        case 0:
+          mExpiredPhotos = updatePhotoAges();
+          break;
+        case 1:
+          for (PhotoInfo photo : mExpiredPhotos)
+            notifyEventObservers(Event.PhotoDeleted, photo);
+          mAgingScheduler.start();
+          finish();
+          break;
+      }
+    }
+
+    private List<PhotoInfo> mExpiredPhotos;
+  }
+
+  /**
+   * Find any photos that have become due for aging (or deletion) since the file was
+   * opened, and restart the aging of overdue photos, with a renewed battery budget.
+   * Should be called whenever an activity displaying the photos is resumed
+   */
+  public void resumeAging() {
+    assertUIThread();
+    if (!isOpen())
+      return;
+    TaskSequence t = new UpdatePhotoAgesTask();
+    t.start();
+  }
+
+  /**
+   * Age a photo to its target state; called by the PhotoAgingScheduler, from a background thread
+   *
+   * @return true if the photo was aged
+   */
+  boolean agePhoto(PhotoInfo agedPhoto) {
+    assertBgndThread();
+    byte[] jpeg;
+    int ageState;
+    // Ensure that photo record and bitmap are being aged as atomic action; this also
+    // excludes removePhoto(), so a deleted photo can't be written back
+    synchronized (agedPhoto) {
+      if (agedPhoto.getTargetAgeState() <= agedPhoto.getCurrentAgeState())
+        return false;
+      if (getPhoto(agedPhoto.getId()) != agedPhoto) {
+        trace("photo no longer exists: " + agedPhoto);
+        return false;
+      }
+      trace(".........aging " + agedPhoto + " to target " + agedPhoto.getTargetAgeState());
+
+      // Read current bitmap as JPEG
+      File photoPath = getPhotoBitmapPath(agedPhoto.getId(), false);
+      try {
+        jpeg = FileUtils.readFileToByteArray(photoPath);
+        PhotoAger ager = new PhotoAger(agedPhoto, jpeg);
+        jpeg = ager.getAgedJPEG();
+        ageState = ager.getAgeState();
+        // Write to a temporary file and rename it, so the photo is never seen partially written
+        File tempPath = new File(photoPath.getPath() + ".tmp");
+        FileUtils.writeByteArrayToFile(tempPath, jpeg);
+        if (getPhoto(agedPhoto.getId()) != agedPhoto) {
+          trace("photo deleted while aging: " + agedPhoto);
+          tempPath.delete();
+          return false;
+        }
+        // Replace the bitmap and its record together, and only if the file isn't closing
+        synchronized (mMetadataLock) {
+          if (mClosing) {
+            tempPath.delete();
+            return false;
+          }
+          if (!tempPath.renameTo(photoPath))
+            throw new IOException("unable to rename " + tempPath);
+          // Update the record only once its bitmap has been replaced
+          agedPhoto.setCurrentAgeState(ageState);
+          writePhotoInfo(agedPhoto);
+        }
+        trace("writing aged version: " + agedPhoto);
+      } catch (IOException e) {
+        warning("Failed to age " + agedPhoto + "; " + d(e));
+        return false;
+      }
+    }
+
+    // Replace the thumbnails of its previous state
+    generateThumbnails(agedPhoto, ageState, null, jpeg);
+    mThumbnailStore.deleteBefore(agedPhoto.getId(), ageState);
+    return true;
+  }
+
+  /**
+   * Generate and store thumbnails of a photo, in each of the sizes that have been requested
+   *
+   * @param bitmap photo's bitmap (before manipulation), or null to decode the JPEG instead
+   * @param jpeg   photo's JPEG, if bitmap is null
+   */
+  private void generateThumbnails(PhotoInfo photo, int ageState, Bitmap bitmap, byte[] jpeg) {
+    for (int size : mThumbnailStore.getSizes()) {
+      try {
+        DecodePlanner plan;
+        if (bitmap != null)
+          plan = new DecodePlanner(bitmap.getWidth(), bitmap.getHeight());
+        else
+          plan = DecodePlanner.forJPEG(jpeg);
+        plan.planThumbnail(size);
+        Bitmap region = (bitmap != null) ? plan.extractRegion(bitmap) : plan.decodeRegion(jpeg);
+        Bitmap thumbnail = renderThumbnail(photo, plan, region);
+        if (region != bitmap)
+          BitmapPool.sharedInstance().recycle(region);
+        mThumbnailStore.write(photo.getId(), ageState, size, thumbnail);
+        BitmapPool.sharedInstance().recycle(thumbnail);
+      } catch (IOException e) {
+        warning("Failed to generate thumbnail for " + photo + "; " + d(e));
+      }
+    }
+  }
+
+  /**
+   * Called on the UI thread after the PhotoAgingScheduler has aged a photo
+   */
+  void photoAged(PhotoInfo photo) {
+    assertUIThread();
+    // Discard any cached versions of its (former) bitmap
+    mPicasso.invalidate(getPhotoBitmapPath(photo.getId(), false));
+    notifyEventObservers(Event.PhotoAged, photo);
   }
 
   /**
    * @param thumbnailSize if not zero, assumes thumbnail as opposed to full size
    */
   public void loadBitmapIntoView(Context context, PhotoInfo photo, int thumbnailSize, ImageView target) {
-    RequestCreator r = Picasso.with(context).load(getPhotoBitmapPath(photo.getId(), false));
-    if (thumbnailSize == 0) //|| (UITools.isPortrait() && warning("always cache")))
-      r.memoryPolicy(MemoryPolicy.NO_CACHE);
-    r.transform(new OurTransformation(context, photo, thumbnailSize));
+    if (thumbnailSize != 0) {
+      // Thumbnails are served from the thumbnail store, by ThumbnailRequestHandler
+      mThumbnailStore.addSize(thumbnailSize);
+      mPicasso.load(buildThumbnailUri(photo, thumbnailSize)).into(target);
+      return;
+    }
+    // The transformation's key identifies the photo's appearance completely, so
+    // the memory cache can't return a stale version
+    RequestCreator r = mPicasso.load(getPhotoBitmapPath(photo.getId(), false));
+    r.transform(new OurTransformation(photo));
     r.into(target);
   }
 
-  private class OurTransformation implements Transformation {
+  private static final String THUMBNAIL_SCHEME = "thumbnail";
 
-    public OurTransformation(Context context, PhotoInfo photo, int thumbnailSize) {
-      mContext = context;
-      mPhotoInfo = photo;
-      mThumbnailSize = thumbnailSize;
+  private static Uri buildThumbnailUri(PhotoInfo photo, int thumbnailSize) {
+    return new Uri.Builder().scheme(THUMBNAIL_SCHEME)
+        .authority(Integer.toString(photo.getId()))
+        .appendPath(Integer.toString(photo.getCurrentAgeState()))
+        .appendPath(Integer.toString(thumbnailSize))
+        .build();
+  }
+
+  /**
+   * Apply the aging manipulations to a photo's bitmap
+   *
+   * @param bitmap photo's bitmap; not modified
+   */
+  private Bitmap renderPhoto(PhotoInfo photo, Bitmap bitmap) {
+    PhotoManipulator m = new PhotoManipulator(mContext, this, photo, bitmap);
+    return m.getManipulatedBitmap();
+  }
+
+  /**
+   * Apply the aging manipulations to the thumbnail region of a photo
+   *
+   * @param plan         plan for the thumbnail
+   * @param regionBitmap the plan's region of the photo; not modified
+   */
+  private Bitmap renderThumbnail(PhotoInfo photo, DecodePlanner plan, Bitmap regionBitmap) {
+    PhotoManipulator m = new PhotoManipulator(mContext, this, photo, regionBitmap,
+        plan.getImageSize(), plan.getRegion(), plan.getOutputSize());
+    return m.getManipulatedBitmap();
+  }
+
+  /**
+   * Serves thumbnail requests from the thumbnail store, generating (and storing)
+   * any that are missing
+   */
+  private class ThumbnailRequestHandler extends RequestHandler {
+
+    @Override
+    public boolean canHandleRequest(Request data) {
+      return THUMBNAIL_SCHEME.equals(data.uri.getScheme());
     }
 
     @Override
-    public Bitmap transform(Bitmap bitmap) {
-      trace("transforming " + mPhotoInfo + "; thumbnail " + forThumbnail());
-      // If target age is greater than current, age the photo and reload
-      if (mPhotoInfo.getTargetAgeState() > mPhotoInfo.getCurrentAgeState()) {
-        // Ensure that photo record and bitmap are being aged as atomic action
-        synchronized (mPhotoInfo) {
-          agePhoto(mPhotoInfo);
-        }
-        bitmap.recycle();
-        bitmap = readBitmapFromFile(mPhotoInfo);
+    public Result load(Request request, int networkPolicy) throws IOException {
+      int photoId;
+      int ageState;
+      int size;
+      try {
+        photoId = Integer.parseInt(request.uri.getAuthority());
+        List<String> path = request.uri.getPathSegments();
+        ageState = Integer.parseInt(path.get(0));
+        size = Integer.parseInt(path.get(1));
+      } catch (RuntimeException e) {
+        throw new IOException("Bad thumbnail uri: " + request.uri);
       }
-      PhotoManipulator m = new PhotoManipulator(mContext, PhotoFile.this, mPhotoInfo, bitmap);
-      Bitmap bitmap2 = m.getManipulatedBitmap();
-      bitmap.recycle();
-      bitmap = bitmap2;
-
-      if (forThumbnail()) {
-        int origWidth = (int) (bitmap.getWidth() * .8f);
-        int origHeight = (int) (bitmap.getHeight() * .8f);
-        int origSize = Math.min(origWidth, origHeight);
-        float scaleFactor = mThumbnailSize / (float) origSize;
-        Matrix matrix = new Matrix();
-        matrix.postScale(scaleFactor, scaleFactor);
-        Bitmap thumbnailBitmap = Bitmap.createBitmap(bitmap,
-            (bitmap.getWidth() - origSize) / 2, (bitmap.getHeight() - origSize) / 2,
-            origSize, origSize, matrix, true);
-        if (bitmap != thumbnailBitmap) {
-          bitmap.recycle();
-          bitmap = thumbnailBitmap;
+
+      Bitmap thumbnail = mThumbnailStore.read(photoId, ageState, size);
+      if (thumbnail != null)
+        return new Result(thumbnail, Picasso.LoadedFrom.DISK);
+
+      PhotoInfo photo = getPhoto(photoId);
+      if (photo == null)
+        throw new IOException("No such photo: " + photoId);
+      // Decode only the part of the photo that appears in the thumbnail, at no more
+      // than the resolution required
+      DecodePlanner plan;
+      Bitmap region;
+      // Read the bitmap and age state together, in case the photo is being aged
+      synchronized (photo) {
+        ageState = photo.getCurrentAgeState();
+        File photoPath = getPhotoBitmapPath(photoId, false);
+        plan = DecodePlanner.forFile(photoPath);
+        plan.planThumbnail(size);
+        region = plan.decodeRegion(photoPath);
+      }
+      thumbnail = renderThumbnail(photo, plan, region);
+      BitmapPool.sharedInstance().recycle(region);
+      // Store the thumbnail only if the photo hasn't been aged or deleted in the meantime,
+      // since its stale thumbnails may already have been deleted; the photo's lock
+      // ensures that won't happen until the thumbnail is written
+      synchronized (photo) {
+        if (photo.getCurrentAgeState() == ageState && getPhoto(photoId) == photo) {
+          try {
+            mThumbnailStore.write(photoId, ageState, size, thumbnail);
+          } catch (IOException e) {
+            warning("Failed to write thumbnail for " + photo + "; " + d(e));
+          }
         }
       }
-      return bitmap;
+      return new Result(thumbnail, Picasso.LoadedFrom.DISK);
+    }
+  }
+
+  private class OurTransformation implements Transformation {
+
+    public OurTransformation(PhotoInfo photo) {
+      mPhotoInfo = photo;
+      mKey = "photo:" + photo.getId() + ":age" + photo.getCurrentAgeState()
+          + ":seed" + getRandomSeed() + ":v" + PhotoManipulator.VERSION;
     }
 
     @Override
-    public String key() {
-      return forThumbnail() ? "thumb" : "normal";
+    public Bitmap transform(Bitmap bitmap) {
+      trace("transforming " + mPhotoInfo);
+      // If the photo is overdue for aging, we display its current state; the
+      // PhotoAgingScheduler will notify observers once it has been aged
+      Bitmap bitmap2 = renderPhoto(mPhotoInfo, bitmap);
+      bitmap.recycle();
+      return bitmap2;
     }
 
-    public boolean forThumbnail() {
-      return mThumbnailSize != 0;
+    @Override
+    public String key() {
+      return mKey;
     }
 
     private final PhotoInfo mPhotoInfo;
-    private final int mThumbnailSize;
-    private final Context mContext;
+    private final String mKey;
   }
 
 
@@ -621,14 +1070,76 @@ public class PhotoFile extends Observable {
   // --------------- Methods called only within background thread
   // --------------- (consider putting these in their own class for simplicity?  Or add prefix?)
 
+  /**
+   * Commit any pending metadata mutations to the journal, and checkpoint if the
+   * journal has grown large enough
+   */
   private void flush() throws IOException {
     assertBgndThread();
-    if (!mModified)
-      return;
-    writeFileState();
-    mModified = false;
+    synchronized (mMetadataLock) {
+      if (mJournal != null) {
+        mJournal.commit();
+        if (!mJournal.checkpointNeeded())
+          return;
+      }
+      checkpoint();
+    }
   }
 
+  /**
+   * Write the file state, if it has changed, then discard the journal's committed entries
+   */
+  private void checkpoint() throws IOException {
+    synchronized (mMetadataLock) {
+      if (mModified) {
+        writeFileState();
+        mModified = false;
+      }
+      if (mJournal != null)
+        mJournal.checkpoint();
+    }
+  }
+
+  // Mutations occurring within this interval are committed to the journal together
+  private static final int COMMIT_WINDOW_MS = 250;
+
+  /**
+   * Called after a mutation has been added to the journal
+   *
+   * @param firstPending true if it is the first uncommitted mutation; if so, a commit is
+   *                     scheduled for the end of the commit window
+   */
+  private void logMutation(boolean firstPending) {
+    if (firstPending)
+      AppState.postUIEvent(mScheduleCommitRunnable, COMMIT_WINDOW_MS);
+  }
+
+  // Runs on the UI thread at the end of the commit window; the event it posts is
+  // remembered, so close() can cancel it
+  private final Runnable mScheduleCommitRunnable = new Runnable() {
+    @Override
+    public void run() {
+      mCommitEvent = AppState.postBgndEvent(AppState.BgndPool.IO, AppState.Priority.VISIBLE,
+          mCommitRunnable);
+    }
+  };
+
+  private final Runnable mCommitRunnable = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (mMetadataLock) {
+        // The close task may have committed everything already
+        if (mMetadataClosed)
+          return;
+        try {
+          flush();
+        } catch (IOException e) {
+          warning("committing journal; " + d(e));
+        }
+      }
+    }
+  };
+
   private static final String KEY_NEXTID = "nextid";
   private static final String KEY_RANDOMSEED = "randomseed";
 
@@ -643,7 +1154,19 @@ public class PhotoFile extends Observable {
       throw new IOException(e);
     }
     trace("Writing file state: " + jsonString);
-    Files.writeString(getStateFile(), jsonString);
+    // Write to a temporary file, sync it, and rename it over the state file; the
+    // journal is discarded once this returns, so the state must be on the device
+    File stateFile = getStateFile();
+    File tempFile = new File(stateFile.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(tempFile);
+    try {
+      stream.write(jsonString.getBytes("UTF-8"));
+      stream.getFD().sync();
+    } finally {
+      stream.close();
+    }
+    if (!tempFile.renameTo(stateFile))
+      throw new IOException("unable to rename " + tempFile);
   }
 
   private File getStateFile() {
@@ -651,37 +1174,58 @@ public class PhotoFile extends Observable {
     return new File(mRootDirectory, "state");
   }
 
-  private PhotoInfo createPhotoInfo() throws IOException {
+  private static final String CATALOG_FILENAME = "catalog";
+
+  private File getCatalogFile() {
+    assertBgndThread();
+    return new File(mRootDirectory, CATALOG_FILENAME);
+  }
+
+  private File getJournalFile() {
+    assertBgndThread();
+    return new File(mRootDirectory, "journal");
+  }
+
+  private PhotoInfo createPhotoInfo(int photoId) throws IOException {
     PhotoInfo info = PhotoInfo.create();
-    info.setId(getUniquePhotoId());
+    info.setId(photoId);
 
-    // Write photo info to file, and store in map
-    writePhotoInfo(info);
+    // Write photo info to journal, and store in map
+    if (!writePhotoInfo(info))
+      throw new IOException("file is closing");
 
     synchronized (mPhotoSet) {
       mPhotoSet.add(info);
     }
-
-    // Flush the changes, i.e. the unique id
-    flush();
     return info;
   }
 
-  private void writePhotoInfo(PhotoInfo info) throws IOException {
-    File path = getPhotoInfoPath(info.getId(), false);
-    String content = info.toJSON();
-    Files.writeString(path, content);
+  /**
+   * Record a photo's info in the journal
+   *
+   * @return false if the file is closing, and no longer accepts mutations
+   */
+  private boolean writePhotoInfo(PhotoInfo info) {
+    synchronized (mMetadataLock) {
+      if (mClosing)
+        return false;
+      logMutation(mJournal.write(info));
+    }
     trace("writing " + info);
-    trace("path " + path);
-    trace("content=<" + content + ">");
+    return true;
   }
 
-  private int getUniquePhotoId() {
+  private int getUniquePhotoId() throws IOException {
     assertBgndThread();
-    int id = mNextPhotoId;
-    mNextPhotoId++;
-    mModified = true;
-    return id;
+    synchronized (mMetadataLock) {
+      if (mClosing)
+        throw new IOException("file is closing");
+      int id = mNextPhotoId;
+      mNextPhotoId++;
+      mModified = true;
+      logMutation(mJournal.setNextPhotoId(mNextPhotoId));
+      return id;
+    }
   }
 
   private File getPhotoBitmapPath(int photoId, boolean backup) {
@@ -690,6 +1234,37 @@ public class PhotoFile extends Observable {
     return new File(mRootDirectory, prefix + photoId + ext);
   }
 
+  /**
+   * Get path of a captured photo's JPEG, while it is waiting to be processed; its
+   * name includes the rotation to be applied to it
+   */
+  private File getPendingPhotoPath(int photoId, int rotationToApply) {
+    return new File(mPendingDirectory, photoId + "_" + rotationToApply + ".jpg");
+  }
+
+  /**
+   * Parse the id and rotation from a pending photo's path
+   *
+   * @return [id, rotation], or null if it's not a pending photo's path
+   */
+  private static int[] parsePendingPhotoPath(File file) {
+    String name = file.getName();
+    if (!name.endsWith(".jpg"))
+      return null;
+    String[] fields = FilenameUtils.getBaseName(name).split("_");
+    if (fields.length != 2)
+      return null;
+    try {
+      return new int[]{Integer.parseInt(fields[0]), Integer.parseInt(fields[1])};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get path of a photo's .json file; these are now only used for (development only)
+   * original copies, and by the migration to the catalog
+   */
   private File getPhotoInfoPath(int photoId, boolean backup) {
     String prefix = backup ? ORIGINAL_COPY_PREFIX : "";
     String ext = backup ? ".orig_json" : ".json";
@@ -700,6 +1275,13 @@ public class PhotoFile extends Observable {
     return mRandomSeed;
   }
 
+  /**
+   * Get the cache of noise textures used to age photos; null if file isn't open
+   */
+  NoiseTextureCache getTextureCache() {
+    return mTextureCache;
+  }
+
   /**
    * Notify registered observers of an event
    *
@@ -713,12 +1295,11 @@ public class PhotoFile extends Observable {
 
   private void createOriginalIfNecessary(PhotoInfo info) {
     File originalInfoPath = getPhotoInfoPath(info.getId(), true);
-    File infoPath = getPhotoInfoPath(info.getId(), false);
-    if (infoPath.exists() && !originalInfoPath.exists()) {
+    if (!originalInfoPath.exists()) {
       warning("creating original copy of photo(s)");
       try {
-        trace("...creating (unaged) copy of " + infoPath + " to " + originalInfoPath);
-        FileUtils.copyFile(infoPath, originalInfoPath);
+        trace("...creating (unaged) copy of " + info + " to " + originalInfoPath);
+        Files.writeString(originalInfoPath, info.toJSON());
       } catch (IOException e) {
         die(e);
       }
@@ -739,12 +1320,30 @@ public class PhotoFile extends Observable {
   private boolean mTrace;
   private State mState;
   private String mFailureMessage;
+  // The most recent commit event posted to the background pool (UI thread only)
+  private Runnable mCommitEvent;
   // This is a constant once the file has been created, so thread doesn't matter
   private int mRandomSeed;
 
-  // These fields should only be accessed by the background thread
+  // These fields should only be accessed by background threads; since there may be
+  // several of these, those that change after the file is opened are guarded by
+  // mMetadataLock
+  private final Object mMetadataLock = new Object();
   private File mRootDirectory;
+  // Directory containing the JPEGs of photos that have been captured but not processed
+  private File mPendingDirectory;
+  private PhotoCatalog mCatalog;
+  private NoiseTextureCache mTextureCache;
+  private ThumbnailStore mThumbnailStore;
+  private Context mContext;
+  private Picasso mPicasso;
+  private PhotoJournal mJournal;
+  private PhotoAgingScheduler mAgingScheduler;
   private boolean mModified;
+  // Set when close() is called; once it is, no further mutations are accepted
+  private volatile boolean mClosing;
+  // Set once the close task has committed everything and closed the catalog
+  private boolean mMetadataClosed;
   private int mNextPhotoId = 1;
   private final SortedSet<PhotoInfo> mPhotoSet;
 }
@@ -0,0 +1,238 @@
+package com.js.camera;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.js.basic.Tools.*;
+
+/**
+ * A write-ahead journal for PhotoFile metadata mutations.
+ * <p/>
+ * Mutations (photo record written, photo deleted, next photo id changed) are buffered
+ * in memory until commit() is called, which appends them all to the journal file in
+ * a single write, syncs it, and then applies them to the catalog.  The catalog itself
+ * is only forced to storage at checkpoints, after which the journal is truncated.
+ * <p/>
+ * When the file is opened, any entries remaining in the journal (i.e. those committed
+ * since the last checkpoint) are replayed onto the catalog; replay stops at the first
+ * incomplete, corrupt or unrecognized entry, so a crash during a commit loses only that commit.  The
+ * journal is truncated after the last good entry.
+ * <p/>
+ * Thread safe.
+ */
+class PhotoJournal {
+
+  private static final int OP_WRITE = 1;
+  private static final int OP_DELETE = 2;
+  private static final int OP_NEXT_ID = 3;
+
+  // Entry: op, id, created, currentstate, desiredstate, checksum
+  private static final int ENTRY_SIZE = 6 * 4;
+
+  // Number of committed entries that will trigger a checkpoint
+  private static final int CHECKPOINT_THRESHOLD = 500;
+
+  public PhotoJournal(File file, PhotoCatalog catalog) {
+    mFile = file;
+    mCatalog = catalog;
+  }
+
+  /**
+   * Replay any entries remaining in the journal onto the catalog
+   *
+   * @return the number of entries replayed
+   */
+  public synchronized int replay() throws IOException {
+    if (!mFile.exists())
+      return 0;
+    ByteBuffer b = ByteBuffer.wrap(FileUtils.readFileToByteArray(mFile));
+    int count = 0;
+    while (b.remaining() >= ENTRY_SIZE) {
+      int op = b.getInt();
+      int id = b.getInt();
+      int created = b.getInt();
+      int currentState = b.getInt();
+      int desiredState = b.getInt();
+      int checksum = b.getInt();
+      if (checksum != calcChecksum(op, id, created, currentState, desiredState)) {
+        warning("Stopping journal replay at corrupt entry #" + count);
+        b.position(count * ENTRY_SIZE);
+        break;
+      }
+      if (!apply(op, id, created, currentState, desiredState)) {
+        warning("Stopping journal replay at entry #" + count + " with unknown op " + op);
+        b.position(count * ENTRY_SIZE);
+        break;
+      }
+      count++;
+    }
+    if (b.position() != b.capacity()) {
+      warning("Truncating journal after entry #" + count);
+      truncate(count * ENTRY_SIZE);
+    }
+    mCommittedCount = count;
+    return count;
+  }
+
+  /**
+   * Get the next photo id most recently recorded in the journal, or zero if none
+   */
+  public synchronized int getNextPhotoId() {
+    return mNextPhotoId;
+  }
+
+  /**
+   * Record that a photo's record has been written
+   *
+   * @return true if this is the first uncommitted mutation, i.e. a commit should be scheduled
+   */
+  public synchronized boolean write(PhotoInfo info) {
+    return add(OP_WRITE, info.getId(), info.getCreationTime(), info.getCurrentAgeState(),
+        info.getTargetAgeState());
+  }
+
+  /**
+   * Record that a photo has been deleted
+   *
+   * @return true if this is the first uncommitted mutation
+   */
+  public synchronized boolean delete(int photoId) {
+    return add(OP_DELETE, photoId, 0, 0, 0);
+  }
+
+  /**
+   * Record a change to the next photo id
+   *
+   * @return true if this is the first uncommitted mutation
+   */
+  public synchronized boolean setNextPhotoId(int nextPhotoId) {
+    return add(OP_NEXT_ID, nextPhotoId, 0, 0, 0);
+  }
+
+  /**
+   * Append all uncommitted mutations to the journal in a single write, sync it,
+   * and apply the mutations to the catalog
+   */
+  public synchronized void commit() throws IOException {
+    if (mPending.isEmpty())
+      return;
+    ByteBuffer b = ByteBuffer.allocate(mPending.size() * ENTRY_SIZE);
+    for (int[] entry : mPending) {
+      for (int field : entry)
+        b.putInt(field);
+    }
+
+    FileOutputStream stream = new FileOutputStream(mFile, true);
+    try {
+      stream.write(b.array());
+      stream.getFD().sync();
+    } finally {
+      stream.close();
+    }
+
+    for (int[] e : mPending)
+      apply(e[0], e[1], e[2], e[3], e[4]);
+    mCommittedCount += mPending.size();
+    mPending.clear();
+  }
+
+  /**
+   * Determine if enough entries have been committed that a checkpoint is worthwhile
+   */
+  public synchronized boolean checkpointNeeded() {
+    return mCommittedCount >= CHECKPOINT_THRESHOLD;
+  }
+
+  /**
+   * Force the catalog to storage, then discard the committed journal entries.  The
+   * caller must have persisted any state derived from the journal (e.g. the next
+   * photo id) before calling this method
+   */
+  public synchronized void checkpoint() throws IOException {
+    if (mCommittedCount == 0 && !mFile.exists())
+      return;
+    mCatalog.flush();
+    if (mFile.exists() && !mFile.delete())
+      throw new IOException("unable to delete journal " + mFile);
+    mCommittedCount = 0;
+  }
+
+  /**
+   * Discard everything following the last good entry, so later commits are appended
+   * at an entry boundary (and are not hidden behind a corrupt entry)
+   */
+  private void truncate(long length) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    try {
+      file.setLength(length);
+      file.getFD().sync();
+    } finally {
+      file.close();
+    }
+  }
+
+  private boolean add(int op, int id, int created, int currentState, int desiredState) {
+    mPending.add(new int[]{op, id, created, currentState, desiredState,
+        calcChecksum(op, id, created, currentState, desiredState)});
+    return mPending.size() == 1;
+  }
+
+  /**
+   * Apply an entry to the catalog
+   *
+   * @return false if the entry's op is not recognized
+   */
+  private boolean apply(int op, int id, int created, int currentState, int desiredState)
+      throws IOException {
+    switch (op) {
+      case OP_WRITE: {
+        PhotoInfo info = PhotoInfo.create();
+        info.setId(id);
+        info.setCreationTime(created);
+        info.setCurrentAgeState(currentState);
+        info.setTargetAgeState(desiredState);
+        mCatalog.write(info);
+      }
+      break;
+      case OP_DELETE:
+        mCatalog.delete(id);
+        break;
+      case OP_NEXT_ID:
+        mNextPhotoId = id;
+        break;
+      default:
+        return false;
+    }
+    return true;
+  }
+
+  private int calcChecksum(int op, int id, int created, int currentState, int desiredState) {
+    CRC32 crc = mChecksum;
+    crc.reset();
+    int[] fields = {op, id, created, currentState, desiredState};
+    for (int value : fields) {
+      crc.update(value >>> 24);
+      crc.update(value >>> 16);
+      crc.update(value >>> 8);
+      crc.update(value);
+    }
+    return (int) crc.getValue();
+  }
+
+  private final File mFile;
+  private final PhotoCatalog mCatalog;
+  private final CRC32 mChecksum = new CRC32();
+  // Mutations that have not yet been committed
+  private final List<int[]> mPending = new ArrayList<int[]>();
+  // Number of entries committed since the last checkpoint
+  private int mCommittedCount;
+  private int mNextPhotoId;
+}
@@ -2,16 +2,17 @@ package com.js.camera;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.Shader;
 
 import com.js.basic.IPoint;
-import com.js.camera.camera.R;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
@@ -19,17 +20,39 @@ import static com.js.basic.Tools.*;
 
 public class PhotoManipulator {
 
+  // Increment this if the manipulation changes, so cached versions of manipulated
+  // photos are no longer used
+  public static final int VERSION = 1;
+
   /**
    * Construct a manipulator for a photo
    *
    * @param originalBitmap the bitmap to be manipulated; may be changed by the manipulation
    */
   public PhotoManipulator(Context context, PhotoFile photoFile, PhotoInfo photoInfo, Bitmap originalBitmap) {
-    assertCorrectConfig(originalBitmap);
+    this(context, photoFile, photoInfo, originalBitmap, BitmapTools.size(originalBitmap), null, null);
+  }
+
+  /**
+   * Construct a manipulator for a region of a photo; the manipulated bitmap contains
+   * only that region, at a particular size, and is identical (apart from resolution)
+   * to the corresponding part of the entire photo's manipulated bitmap
+   *
+   * @param regionBitmap bitmap of the region, at any scale
+   * @param photoSize    size of the entire photo
+   * @param region       the region, in the entire photo's coordinates
+   * @param outputSize   size of manipulated bitmap
+   */
+  public PhotoManipulator(Context context, PhotoFile photoFile, PhotoInfo photoInfo,
+                          Bitmap regionBitmap, IPoint photoSize, Rect region, IPoint outputSize) {
+    assertCorrectConfig(regionBitmap);
     mContext = context;
     mPhotoFile = photoFile;
     mPhotoInfo = photoInfo;
-    mOriginalBitmap = originalBitmap;
+    mOriginalBitmap = regionBitmap;
+    mPhotoSize = photoSize;
+    mRegion = region;
+    mOutputSize = outputSize;
     calcHashValue();
   }
 
@@ -39,11 +62,10 @@ public class PhotoManipulator {
     return mOutputBitmap;
   }
 
-  private static final float sFlipBetweenLandscapeAndPortrait[] = {0, 1, 0, 1, 0, 0, 0, 0, 1};
-
   private void constructManipulatedBitmap() {
     constructCanvas();
 
+    applyTextures();
     applyVignette();
 
     // Throw out unneeded resources
@@ -59,18 +81,69 @@ public class PhotoManipulator {
     return (int) scale;
   }
 
+  /**
+   * Calculate alpha for an aging effect, which increases linearly with age
+   */
+  private int calcAlphaForAge(int maxAlpha) {
+    int ageState = mPhotoInfo.getCurrentAgeState();
+    return (maxAlpha * ageState) / (PhotoInfo.AGE_STATE_MAX - 1);
+  }
+
+  private void applyTextures() {
+    NoiseTextureCache cache = mPhotoFile.getTextureCache();
+    if (cache == null)
+      return;
+    applyTexture(cache, NoiseTextureCache.Kind.BLOTCH, HASH_SHIFT_BLOTCH,
+        PorterDuff.Mode.MULTIPLY, calcAlphaForAge(110));
+    applyTexture(cache, NoiseTextureCache.Kind.GRAIN, HASH_SHIFT_GRAIN,
+        PorterDuff.Mode.OVERLAY, calcAlphaForAge(90));
+  }
+
+  /**
+   * Composite a noise texture onto the canvas; the tile, its flip, and its offset
+   * are selected by the hash value
+   */
+  private void applyTexture(NoiseTextureCache cache, NoiseTextureCache.Kind kind,
+                            int hashShift, PorterDuff.Mode mode, int alpha) {
+    if (alpha == 0)
+      return;
+    int hashBits = mHashValue >> hashShift;
+    Bitmap tile = cache.getTile(kind, hashBits);
+    int flipIndex = myMod(hashBits >> HASH_BITS_TEXTURE_TILE, 4);
+    int offsetIndex = myMod(hashBits >> (HASH_BITS_TEXTURE_TILE + HASH_BITS_TEXTURE_FLIP), 16);
+
+    int tileSize = kind.getTileSize();
+    int width = mLogicalSize.x;
+    int height = mLogicalSize.y;
+    Matrix matrix = new Matrix();
+    matrix.setScale((flipIndex & 1) != 0 ? -1 : 1, (flipIndex & 2) != 0 ? -1 : 1);
+    matrix.postTranslate((offsetIndex & 3) * tileSize / 4.0f, (offsetIndex >> 2) * tileSize / 4.0f);
+    // Grain is drawn at its actual size; blotches are scaled to cover the photo
+    if (kind == NoiseTextureCache.Kind.BLOTCH) {
+      float scale = Math.max(width, height) / (float) tileSize;
+      matrix.postScale(scale, scale);
+    }
+
+    // Mirroring the tile makes it seamless
+    BitmapShader shader = new BitmapShader(tile, Shader.TileMode.MIRROR, Shader.TileMode.MIRROR);
+    shader.setLocalMatrix(matrix);
+    Paint paint = new Paint();
+    paint.setShader(shader);
+    paint.setFilterBitmap(true);
+    paint.setAlpha(alpha);
+    paint.setXfermode(new PorterDuffXfermode(mode));
+    mCanvas.drawRect(0, 0, width, height, paint);
+  }
+
   private void applyVignette() {
     Paint paint = new Paint();
     paint.setAlpha(calcVignetteAlphaForAge());
+    paint.setFilterBitmap(true);
     int jpegIndex = (mHashValue >> HASH_SHIFT_VIGNETTE);
-    Bitmap vignetteBitmap = getVignette(jpegIndex);
+    // The cached vignette is already oriented and scaled to the logical photo size
+    Bitmap vignetteBitmap = VignetteCache.sharedInstance(mContext).get(jpegIndex, isPortrait());
     IPoint vSize = BitmapTools.size(vignetteBitmap);
-    // Vignettes are in landscape mode; if necessary, rotate to portrait
     Matrix matrix = new Matrix();
-    if (isPortrait()) {
-      matrix.setValues(sFlipBetweenLandscapeAndPortrait);
-      vSize = new IPoint(vSize.y, vSize.x);
-    }
 
     // Flip vertically and/or horizontally, based on hash value
     int flipIndex = myMod(mHashValue >> HASH_SHIFT_VIGNETTE_FLIP, 4);
@@ -86,49 +159,56 @@ public class PhotoManipulator {
       matrix2.postTranslate(0, vSize.y);
       matrix.postConcat(matrix2);
     }
+    // The photo may be smaller than the logical size, if its aspect ratio differs
+    if (vSize.x != mLogicalSize.x || vSize.y != mLogicalSize.y)
+      matrix.postScale(mLogicalSize.x / (float) vSize.x, mLogicalSize.y / (float) vSize.y);
     mCanvas.drawBitmap(vignetteBitmap, matrix, paint);
-
   }
 
+  /**
+   * Construct the output bitmap and a canvas for it.  The effects are drawn in
+   * logical coordinates, i.e. those of the entire photo scaled to fit the logical
+   * maximum size; if we're manipulating a region, the canvas maps these to the
+   * region's output bitmap
+   */
   private void constructCanvas() {
     IPoint targetSize = PhotoInfo.getLogicalMaximumSize(isPortrait());
-    Bitmap bitmap = BitmapTools.scaleBitmapToFit(mOriginalBitmap, targetSize, true, false);
-    // Construct a copy of the scaled bitmap, so we don't modify the original
-    bitmap = bitmap.copy(bitmap.getConfig(), true);
-    if (bitmap == null)
-      die("failed to make copy of bitmap");
+    float scale = Math.min(targetSize.x / (float) mPhotoSize.x, targetSize.y / (float) mPhotoSize.y);
+    mLogicalSize = new IPoint(Math.round(mPhotoSize.x * scale), Math.round(mPhotoSize.y * scale));
+    IPoint outputSize = (mRegion == null) ? mLogicalSize : mOutputSize;
 
-    mOutputBitmap = bitmap;
+    // Scale the original into a new bitmap, so we don't modify the original
+    mOutputBitmap = BitmapPool.sharedInstance().getBitmap(outputSize.x, outputSize.y);
     mCanvas = new Canvas();
     mCanvas.setBitmap(mOutputBitmap);
+    mCanvas.drawBitmap(mOriginalBitmap, null, new Rect(0, 0, outputSize.x, outputSize.y),
+        new Paint(Paint.FILTER_BITMAP_FLAG));
+
+    if (mRegion != null) {
+      Matrix matrix = new Matrix();
+      matrix.setTranslate(-mRegion.left * scale, -mRegion.top * scale);
+      matrix.postScale(outputSize.x / (mRegion.width() * scale),
+          outputSize.y / (mRegion.height() * scale));
+      mCanvas.concat(matrix);
+    }
   }
 
-  private static final int[] sVignetteIds = {
-      R.raw.vignette, R.raw.vignette2, R.raw.vignette3};
-
   private static final int HASH_BITS_VIGNETTE = 3;
   private static final int HASH_BITS_VIGNETTE_FLIP = 2;
+  private static final int HASH_BITS_TEXTURE_TILE = 2;
+  private static final int HASH_BITS_TEXTURE_FLIP = 2;
+  private static final int HASH_BITS_TEXTURE_OFFSET = 4;
+  private static final int HASH_BITS_TEXTURE = HASH_BITS_TEXTURE_TILE + HASH_BITS_TEXTURE_FLIP
+      + HASH_BITS_TEXTURE_OFFSET;
 
   private static final int HASH_SHIFT_VIGNETTE = 0;
   private static final int HASH_SHIFT_VIGNETTE_FLIP = HASH_SHIFT_VIGNETTE + HASH_BITS_VIGNETTE;
-  private static final int HASH_SHIFT_next = HASH_SHIFT_VIGNETTE_FLIP + HASH_BITS_VIGNETTE_FLIP;
-
-  private Bitmap getVignette(int vignetteIndex) {
-    Bitmap sVignette = null;
-    try {
-      int vignetteId = sVignetteIds[myMod(vignetteIndex, sVignetteIds.length)];
-      InputStream stream = mContext.getResources().openRawResource(vignetteId);
-      sVignette = BitmapFactory.decodeStream(stream);
-      stream.close();
-    } catch (IOException e) {
-      die(e);
-    }
-    assertCorrectConfig(sVignette);
-    return sVignette;
-  }
+  private static final int HASH_SHIFT_GRAIN = HASH_SHIFT_VIGNETTE_FLIP + HASH_BITS_VIGNETTE_FLIP;
+  private static final int HASH_SHIFT_BLOTCH = HASH_SHIFT_GRAIN + HASH_BITS_TEXTURE;
+  private static final int HASH_SHIFT_next = HASH_SHIFT_BLOTCH + HASH_BITS_TEXTURE;
 
   private boolean isPortrait() {
-    return BitmapTools.getOrientation(mOriginalBitmap) == BitmapTools.ORIENTATION_PORTRAIT;
+    return mPhotoSize.x <= mPhotoSize.y;
   }
 
   private static void assertCorrectConfig(Bitmap bitmap) {
@@ -152,6 +232,11 @@ public class PhotoManipulator {
   private PhotoFile mPhotoFile;
   private PhotoInfo mPhotoInfo;
   private Bitmap mOriginalBitmap;
+  private final IPoint mPhotoSize;
+  // If not null, the region of the photo being manipulated
+  private final Rect mRegion;
+  private final IPoint mOutputSize;
+  private IPoint mLogicalSize;
   private Bitmap mOutputBitmap;
   private Canvas mCanvas;
 }
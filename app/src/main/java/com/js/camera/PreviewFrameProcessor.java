@@ -0,0 +1,171 @@
+package com.js.camera;
+
+import android.graphics.Bitmap;
+
+import com.js.basic.IPoint;
+
+import static com.js.android.AndroidTools.*;
+
+/**
+ * Processes the camera's preview frames (which must be in NV21 format) in the
+ * background, to give them an aged look, and passes the results to a listener
+ * for display.
+ * <p/>
+ * Frames are processed one at a time.  If they arrive faster than they can be
+ * processed, only the latest is kept, and earlier ones are returned to the camera
+ * unprocessed; so a slow device displays fewer frames per second, instead of
+ * displaying increasingly stale ones.
+ */
+class PreviewFrameProcessor implements MyCamera.PreviewFrameConsumer {
+
+  public interface Listener {
+    /**
+     * Called on the UI thread when a frame has been processed.  The bitmap remains
+     * valid until this method is called with the next one, and must not be used
+     * after that
+     */
+    void frameProcessed(Bitmap frame);
+  }
+
+  // Factor by which the preview frames' chroma is scaled
+  private static final float CHROMA_SCALE = .35f;
+
+  public PreviewFrameProcessor(MyCamera camera, Listener listener) {
+    mCamera = camera;
+    mListener = listener;
+  }
+
+  /**
+   * Stop processing frames; any frames that arrive later are returned to the camera
+   * unprocessed, and frames currently being processed are not displayed
+   */
+  public void stop() {
+    assertUIThread();
+    byte[] pendingFrame;
+    synchronized (this) {
+      mStopped = true;
+      pendingFrame = mPendingFrame;
+      mPendingFrame = null;
+    }
+    if (pendingFrame != null)
+      mCamera.returnPreviewBuffer(pendingFrame);
+  }
+
+  public synchronized int getProcessedFrameCount() {
+    return mProcessedFrameCount;
+  }
+
+  public synchronized int getDroppedFrameCount() {
+    return mDroppedFrameCount;
+  }
+
+  @Override
+  public void previewFrameAvailable(byte[] frame, IPoint size) {
+    byte[] droppedFrame;
+    boolean startProcessing = false;
+    synchronized (this) {
+      if (mStopped) {
+        droppedFrame = frame;
+      } else {
+        // The latest frame replaces any that is still waiting to be processed
+        droppedFrame = mPendingFrame;
+        mPendingFrame = frame;
+        mPendingFrameSize = size;
+        if (!mProcessing) {
+          mProcessing = true;
+          startProcessing = true;
+        }
+      }
+      if (droppedFrame != null)
+        mDroppedFrameCount++;
+    }
+    if (droppedFrame != null)
+      mCamera.returnPreviewBuffer(droppedFrame);
+    if (startProcessing)
+      AppState.postBgndEvent(AppState.BgndPool.CPU, AppState.Priority.VISIBLE, mProcessFrameEvent);
+  }
+
+  private Runnable mProcessFrameEvent = new Runnable() {
+    @Override
+    public void run() {
+      assertBgndThread();
+      byte[] frame;
+      IPoint size;
+      synchronized (PreviewFrameProcessor.this) {
+        frame = mPendingFrame;
+        size = mPendingFrameSize;
+        mPendingFrame = null;
+        if (frame == null) {
+          mProcessing = false;
+          return;
+        }
+      }
+      final Bitmap bitmap = processFrame(frame, size);
+      AppState.postUIEvent(new Runnable() {
+        @Override
+        public void run() {
+          frameDisplayed(bitmap);
+        }
+      });
+    }
+  };
+
+  /**
+   * Convert a frame to an aged bitmap, and return the frame to the camera.  The
+   * bitmaps are double-buffered: one is being displayed while the other is written
+   */
+  private Bitmap processFrame(byte[] frame, IPoint size) {
+    // Bleach the frame while it's in YUV form, since the chroma planes are small
+    BitmapTools.scaleYUV420SPParallel(frame, size, 1.0f, CHROMA_SCALE, CHROMA_SCALE);
+    int pixelCount = size.x * size.y;
+    if (mPixels == null || mPixels.length < pixelCount)
+      mPixels = new int[pixelCount];
+    BitmapTools.decodeYUV420SPParallel(mPixels, frame, size);
+    mCamera.returnPreviewBuffer(frame);
+
+    Bitmap bitmap = mBitmaps[mBackBitmapIndex];
+    if (bitmap == null || bitmap.getWidth() != size.x || bitmap.getHeight() != size.y) {
+      bitmap = Bitmap.createBitmap(size.x, size.y, Bitmap.Config.ARGB_8888);
+      mBitmaps[mBackBitmapIndex] = bitmap;
+    }
+    bitmap.setPixels(mPixels, 0, size.x, 0, 0, size.x, size.y);
+    mBackBitmapIndex ^= 1;
+    return bitmap;
+  }
+
+  /**
+   * Display a processed frame; once the listener has it, the other bitmap is no
+   * longer displayed, so we can process the next frame into it
+   */
+  private void frameDisplayed(Bitmap bitmap) {
+    assertUIThread();
+    boolean stopped;
+    synchronized (this) {
+      stopped = mStopped;
+      mProcessedFrameCount++;
+    }
+    if (!stopped)
+      mListener.frameProcessed(bitmap);
+    synchronized (this) {
+      if (mPendingFrame == null || mStopped) {
+        mProcessing = false;
+        return;
+      }
+    }
+    AppState.postBgndEvent(AppState.BgndPool.CPU, AppState.Priority.VISIBLE, mProcessFrameEvent);
+  }
+
+  private final MyCamera mCamera;
+  private final Listener mListener;
+  // True while a frame is being processed, or is awaiting display
+  private boolean mProcessing;
+  private boolean mStopped;
+  private byte[] mPendingFrame;
+  private IPoint mPendingFrameSize;
+  private int mProcessedFrameCount;
+  private int mDroppedFrameCount;
+  // These are used only by the frame being processed
+  private int[] mPixels;
+  private final Bitmap[] mBitmaps = new Bitmap[2];
+  private int mBackBitmapIndex;
+}
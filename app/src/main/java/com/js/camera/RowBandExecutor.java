@@ -0,0 +1,168 @@
+package com.js.camera;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a kernel over the rows of an image, split into bands that are processed
+ * in parallel.
+ * <p/>
+ * The calling thread processes bands as well, and only returns once every band
+ * has been processed; so it's safe to call from any thread, including those of
+ * the background pools.  Helper threads come from a small pool shared by all
+ * callers; they claim bands from the job until none remain, so a helper that is
+ * late to start simply finds nothing left to do.
+ * <p/>
+ * The kernel must write disjoint outputs for disjoint bands; the result is then
+ * independent of how the bands are scheduled.
+ */
+public class RowBandExecutor {
+
+  public interface Kernel {
+    /**
+     * Process rows [startRow, endRow)
+     */
+    void processRows(int startRow, int endRow);
+  }
+
+  // Number of bands to split the rows into, per thread; more than one, so
+  // threads that finish early can take up the slack
+  private static final int BANDS_PER_THREAD = 4;
+
+  // Number of seconds an idle helper thread waits before terminating
+  private static final int KEEP_ALIVE_SECONDS = 10;
+
+  /**
+   * Get the number of threads (including the caller) that will process bands
+   */
+  public static int getParallelism() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Run a kernel over a number of rows
+   *
+   * @param rowAlignment each band (except possibly the last) will start and end on a
+   *                     multiple of this number of rows
+   */
+  public static void run(int numRows, int rowAlignment, Kernel kernel) {
+    if (rowAlignment < 1)
+      throw new IllegalArgumentException();
+    int numUnits = (numRows + rowAlignment - 1) / rowAlignment;
+    int parallelism = getParallelism();
+    int numBands = Math.min(numUnits, parallelism * BANDS_PER_THREAD);
+    if (numBands <= 1 || parallelism <= 1) {
+      if (numRows > 0)
+        kernel.processRows(0, numRows);
+      return;
+    }
+
+    Job job = new Job(kernel, numRows, rowAlignment, numUnits, numBands);
+    ThreadPoolExecutor pool = pool();
+    int numHelpers = Math.min(numBands - 1, pool.getMaximumPoolSize());
+    for (int i = 0; i < numHelpers; i++)
+      pool.execute(job);
+    job.run();
+    job.await();
+  }
+
+  private static synchronized ThreadPoolExecutor pool() {
+    if (sPool == null) {
+      int numThreads = Math.max(1, getParallelism() - 1);
+      ThreadFactory factory = new ThreadFactory() {
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Row band thread #" + mThreadCount);
+          mThreadCount++;
+          thread.setDaemon(true);
+          return thread;
+        }
+
+        private int mThreadCount = 1;
+      };
+      sPool = new ThreadPoolExecutor(numThreads, numThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), factory);
+      sPool.allowCoreThreadTimeOut(true);
+    }
+    return sPool;
+  }
+
+  private static class Job implements Runnable {
+
+    public Job(Kernel kernel, int numRows, int rowAlignment, int numUnits, int numBands) {
+      mKernel = kernel;
+      mNumRows = numRows;
+      mRowAlignment = rowAlignment;
+      mNumUnits = numUnits;
+      mNumBands = numBands;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        int band = mNextBand.getAndIncrement();
+        if (band >= mNumBands)
+          break;
+        try {
+          mKernel.processRows(bandStart(band), bandStart(band + 1));
+        } catch (RuntimeException e) {
+          setFailure(e);
+        } catch (Error e) {
+          setFailure(e);
+        } finally {
+          synchronized (this) {
+            mCompletedBands++;
+            if (mCompletedBands == mNumBands)
+              notifyAll();
+          }
+        }
+      }
+    }
+
+    /**
+     * Wait for all bands to be processed; rethrows the first exception thrown by the kernel
+     */
+    public synchronized void await() {
+      boolean interrupted = false;
+      while (mCompletedBands < mNumBands) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // The bands already claimed by helper threads must complete before we
+          // can return, so defer the interrupt until then
+          interrupted = true;
+        }
+      }
+      if (interrupted)
+        Thread.currentThread().interrupt();
+      if (mFailure instanceof RuntimeException)
+        throw (RuntimeException) mFailure;
+      if (mFailure instanceof Error)
+        throw (Error) mFailure;
+    }
+
+    private int bandStart(int band) {
+      int row = (int) (((long) mNumUnits * band) / mNumBands) * mRowAlignment;
+      return Math.min(row, mNumRows);
+    }
+
+    private synchronized void setFailure(Throwable t) {
+      if (mFailure == null)
+        mFailure = t;
+    }
+
+    private final Kernel mKernel;
+    private final int mNumRows;
+    private final int mRowAlignment;
+    private final int mNumUnits;
+    private final int mNumBands;
+    private final AtomicInteger mNextBand = new AtomicInteger();
+    private int mCompletedBands;
+    private Throwable mFailure;
+  }
+
+  private static ThreadPoolExecutor sPool;
+}
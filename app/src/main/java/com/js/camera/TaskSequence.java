@@ -9,12 +9,18 @@ import static com.js.basic.Tools.*;
  * UI and background threads.
  * <p/>
  * Each task has a stage number, starting at zero.  Those with even
- * numbers execute on the background thread; those with odd execute
- * on the UI thread.
+ * numbers execute on a background thread (from one of the AppState pools);
+ * those with odd execute on the UI thread.
  * <p/>
  * Clients can use subclasses of TaskSequence with appropriate instance fields.
  * These fields will not require synchronization, since each stage's execution
- * will not overlap despite occurring on different threads.
+ * will not overlap despite occurring on different threads; the next stage is
+ * not posted until the current one has returned.  Distinct sequences may,
+ * however, run their background stages concurrently.
+ * <p/>
+ * A sequence can be cancelled, either directly or through a CancellationToken;
+ * this drops any stage that is queued but not yet running.  Stages that perform
+ * lengthy work should poll isCancelled() and return early if it is true.
  */
 public abstract class TaskSequence {
 
@@ -30,6 +36,10 @@ public abstract class TaskSequence {
         runAux();
       }
     };
+    if (mCancellationToken != null && !mCancellationToken.register(this)) {
+      cancel();
+      return;
+    }
     startNextStage();
   }
 
@@ -48,6 +58,71 @@ public abstract class TaskSequence {
     return this;
   }
 
+  /**
+   * Select the background pool that even-numbered stages execute on; the default is IO
+   *
+   * @return this a convenience for chaining
+   */
+  public TaskSequence setBgndPool(AppState.BgndPool pool) {
+    assertStarted(false);
+    mBgndPool = pool;
+    return this;
+  }
+
+  /**
+   * Set the priority of the even-numbered stages; the default is VISIBLE
+   *
+   * @return this a convenience for chaining
+   */
+  public TaskSequence setPriority(AppState.Priority priority) {
+    assertStarted(false);
+    mPriority = priority;
+    return this;
+  }
+
+  /**
+   * Associate the sequence with a CancellationToken
+   *
+   * @return this a convenience for chaining
+   */
+  public TaskSequence setCancellationToken(CancellationToken token) {
+    assertStarted(false);
+    mCancellationToken = token;
+    return this;
+  }
+
+  /**
+   * Stop the task sequence, dropping its next stage if it is queued but hasn't started.
+   * May be called from any thread
+   */
+  public void cancel() {
+    Runnable pendingEvent;
+    int pendingStage;
+    synchronized (this) {
+      if (nState == State.ABORTED || nState == State.FINISHED)
+        return;
+      setState(State.ABORTED);
+      pendingEvent = mPendingEvent;
+      pendingStage = nStage;
+      mPendingEvent = null;
+    }
+    if (pendingEvent != null) {
+      if (pendingStage % 2 == 0)
+        AppState.cancelBgndEvent(mBgndPool, pendingEvent);
+      else
+        AppState.cancelUIEvent(pendingEvent);
+    }
+  }
+
+  /**
+   * Determine if the sequence has been cancelled (or aborted); lengthy stages
+   * should poll this periodically
+   */
+  public boolean isCancelled() {
+    return nState == State.ABORTED
+        || (mCancellationToken != null && mCancellationToken.isCancelled());
+  }
+
   public TaskSequence setCompletionCallback(Runnable callback) {
     assertStarted(false);
     mCompletionCallback = callback;
@@ -82,13 +157,24 @@ public abstract class TaskSequence {
     final int MAX_STAGES = 100;
     if (nStage == MAX_STAGES)
       throw new IllegalStateException("runaway task");
-    if (nStage % 2 == 0)
-      AppState.postBgndEvent(nRunnable);
-    else
-      AppState.postUIEvent(nRunnable);
+    // Hold the lock while posting, so the stage can't start before it's recorded as pending
+    synchronized (this) {
+      if (nStage % 2 == 0) {
+        mPendingEvent = AppState.postBgndEvent(mBgndPool, mPriority, nRunnable);
+      } else {
+        AppState.postUIEvent(nRunnable);
+        mPendingEvent = nRunnable;
+      }
+    }
   }
 
   private void runAux() {
+    synchronized (this) {
+      mPendingEvent = null;
+      // If the sequence was cancelled while this stage was queued, don't run it
+      if (nState != State.STARTED)
+        return;
+    }
     // Do a delay if simulated delay specified
     if (nRandom != null) {
       float f = (nRandom.nextFloat() * .8f) + .6f;
@@ -114,17 +200,24 @@ public abstract class TaskSequence {
     FINISHED,
   }
 
-  private void setState(State state) {
+  private synchronized void setState(State state) {
     if (nState == State.ABORTED || nState == State.FINISHED)
       return;
     nState = state;
+    if (state != State.STARTED && mCancellationToken != null)
+      mCancellationToken.unregister(this);
   }
 
-  private State nState = State.WAITING;
+  private volatile State nState = State.WAITING;
   private Runnable nRunnable;
   private int nStage;
   // Optional callback to be made on UI thread when task completes normally
   private Runnable mCompletionCallback;
+  private AppState.BgndPool mBgndPool = AppState.BgndPool.IO;
+  private AppState.Priority mPriority = AppState.Priority.VISIBLE;
+  private CancellationToken mCancellationToken;
+  // The event most recently posted to run the next stage, if it hasn't yet started
+  private Runnable mPendingEvent;
   // Only used if a simulated delay has been specified:
   private Random nRandom;
   private int nSleepTime;
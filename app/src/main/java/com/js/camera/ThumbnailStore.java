@@ -0,0 +1,200 @@
+package com.js.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.js.basic.Files;
+import com.js.basic.JSONTools;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static com.js.basic.Tools.*;
+
+/**
+ * Stores photo thumbnails (i.e., manipulated, cropped and scaled versions of
+ * photos) as small JPEG files, keyed by photo id, age state, and thumbnail size.
+ * <p/>
+ * Since a photo's appearance depends only upon these, a stored thumbnail remains
+ * valid until the photo is aged (or deleted).  The store remembers which thumbnail
+ * sizes have been requested (in a small file alongside the thumbnails), so thumbnails
+ * can be generated in advance when a photo is created or aged.  Thumbnails produced
+ * by an earlier version of the manipulation are discarded when the store is opened.
+ * <p/>
+ * Thread safe.
+ */
+class ThumbnailStore {
+
+  private static final int JPEG_QUALITY = 90;
+  private static final String SIZES_FILENAME = "sizes";
+  private static final String KEY_VERSION = "version";
+  private static final String KEY_SIZES = "sizes";
+
+  public ThumbnailStore(File directory) {
+    mDirectory = directory;
+    mSizes = new TreeSet<Integer>();
+    readSizes();
+  }
+
+  /**
+   * Register a thumbnail size, so thumbnails of this size will be generated in advance
+   */
+  public synchronized void addSize(int size) {
+    // This is called from the UI thread, so the sizes file is written later, along
+    // with the next thumbnail
+    if (mSizes.add(size))
+      mSizesModified = true;
+  }
+
+  /**
+   * Get the thumbnail sizes that have been requested
+   */
+  public synchronized List<Integer> getSizes() {
+    return new ArrayList<Integer>(mSizes);
+  }
+
+  /**
+   * Read a thumbnail
+   *
+   * @return thumbnail, or null if it isn't in the store
+   */
+  public Bitmap read(int photoId, int ageState, int size) {
+    File file = getFile(photoId, ageState, size);
+    if (!file.exists())
+      return null;
+    return BitmapFactory.decodeFile(file.getPath());
+  }
+
+  public void write(int photoId, int ageState, int size, Bitmap thumbnail) throws IOException {
+    prepareDirectory();
+    File file = getFile(photoId, ageState, size);
+    // Write to a temporary file and rename it, so a partially written thumbnail is never
+    // read; the name is unique, since the same thumbnail may be written by two threads
+    File tempFile = File.createTempFile("thumbnail", ".tmp", mDirectory);
+    try {
+      OutputStream stream = new FileOutputStream(tempFile);
+      try {
+        if (!thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, stream))
+          throw new IOException("unable to compress thumbnail");
+      } finally {
+        stream.close();
+      }
+      if (!tempFile.renameTo(file))
+        throw new IOException("unable to rename " + tempFile);
+    } catch (IOException e) {
+      tempFile.delete();
+      throw e;
+    }
+    writeSizesIfModified();
+  }
+
+  /**
+   * Delete a photo's thumbnails for all age states prior to a particular one
+   */
+  public void deleteBefore(int photoId, int ageState) {
+    List<Integer> sizes = getSizes();
+    for (int state = 0; state < ageState; state++) {
+      for (int size : sizes)
+        getFile(photoId, state, size).delete();
+    }
+  }
+
+  /**
+   * Delete all of a photo's thumbnails
+   */
+  public void deleteAll(int photoId) {
+    deleteBefore(photoId, PhotoInfo.AGE_STATE_MAX + 1);
+  }
+
+  private File getFile(int photoId, int ageState, int size) {
+    return new File(mDirectory, photoId + "_" + ageState + "_" + size
+        + "_v" + PhotoManipulator.VERSION + ".jpg");
+  }
+
+  private void prepareDirectory() throws IOException {
+    if (!mDirectory.exists() && !mDirectory.mkdirs())
+      throw new IOException("unable to create " + mDirectory);
+  }
+
+  /**
+   * Read the thumbnail sizes that have been requested previously; if they were
+   * recorded by an earlier version of the manipulation (or not at all), delete the
+   * existing thumbnails instead
+   */
+  private void readSizes() {
+    File sizesFile = new File(mDirectory, SIZES_FILENAME);
+    if (sizesFile.exists()) {
+      try {
+        JSONObject map = JSONTools.parseMap(Files.readString(sizesFile));
+        if (map.getInt(KEY_VERSION) == PhotoManipulator.VERSION) {
+          JSONArray sizes = map.getJSONArray(KEY_SIZES);
+          for (int i = 0; i < sizes.length(); i++)
+            mSizes.add(sizes.getInt(i));
+          return;
+        }
+      } catch (IOException e) {
+        warning("Failed to read thumbnail sizes; " + d(e));
+      } catch (JSONException e) {
+        warning("Failed to parse thumbnail sizes; " + d(e));
+      }
+    }
+
+    File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File file : files)
+        file.delete();
+    }
+    // Record the current version, so the directory isn't examined again
+    mSizesModified = true;
+    try {
+      prepareDirectory();
+      writeSizesIfModified();
+    } catch (IOException e) {
+      warning("Failed to write thumbnail sizes; " + d(e));
+    }
+  }
+
+  private synchronized void writeSizesIfModified() throws IOException {
+    if (!mSizesModified)
+      return;
+    String jsonString;
+    try {
+      JSONObject map = new JSONObject();
+      map.put(KEY_VERSION, PhotoManipulator.VERSION);
+      JSONArray sizes = new JSONArray();
+      for (int size : mSizes)
+        sizes.put(size);
+      map.put(KEY_SIZES, sizes);
+      jsonString = map.toString();
+    } catch (JSONException e) {
+      throw new IOException(e);
+    }
+    File sizesFile = new File(mDirectory, SIZES_FILENAME);
+    File tempFile = new File(sizesFile.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(tempFile);
+    try {
+      stream.write(jsonString.getBytes("UTF-8"));
+      stream.getFD().sync();
+    } finally {
+      stream.close();
+    }
+    if (!tempFile.renameTo(sizesFile))
+      throw new IOException("unable to rename " + tempFile);
+    mSizesModified = false;
+  }
+
+  private final File mDirectory;
+  private final SortedSet<Integer> mSizes;
+  // True if the sizes have changed since the sizes file was written
+  private boolean mSizesModified;
+}
@@ -59,6 +59,7 @@ public class ViewPhotoActivity extends Activity implements Observer {
     super.onResume();
     setState(ActivityState.Resumed);
     mPhotoFile.addObserver(this);
+    mPhotoFile.resumeAging();
     addPhotoPagesIfPhotosReady();
   }
 
@@ -0,0 +1,116 @@
+package com.js.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.util.LruCache;
+
+import com.js.basic.IPoint;
+import com.js.camera.camera.R;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.js.basic.Tools.*;
+
+/**
+ * A process-wide cache of decoded vignettes, each already oriented (portrait or
+ * landscape) and scaled to the logical photo size, so they can be drawn directly
+ * onto a manipulated photo.
+ * <p/>
+ * The cache is bounded by memory usage (see MemoryBudget), and is emptied when
+ * the system reports that memory is low.
+ * <p/>
+ * Thread safe.
+ */
+class VignetteCache {
+
+  private static final int[] sVignetteIds = {
+      R.raw.vignette, R.raw.vignette2, R.raw.vignette3};
+
+  public static synchronized VignetteCache sharedInstance(Context context) {
+    if (sSharedInstance == null)
+      sSharedInstance = new VignetteCache(context.getApplicationContext());
+    return sSharedInstance;
+  }
+
+  /**
+   * Empty the shared instance, if there is one
+   */
+  public static void evictShared() {
+    VignetteCache cache;
+    synchronized (VignetteCache.class) {
+      cache = sSharedInstance;
+    }
+    if (cache != null)
+      cache.evictAll();
+  }
+
+  public static int getVignetteCount() {
+    return sVignetteIds.length;
+  }
+
+  private VignetteCache(Context context) {
+    mContext = context;
+    mCache = new LruCache<Integer, Bitmap>(MemoryBudget.vignetteCacheBytes()) {
+      @Override
+      protected int sizeOf(Integer key, Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+      }
+
+      @Override
+      protected Bitmap create(Integer key) {
+        return buildVignette(key >> 1, (key & 1) != 0);
+      }
+    };
+  }
+
+  /**
+   * Get a vignette, decoding it if necessary
+   *
+   * @param vignetteIndex index of vignette; reduced modulo the number of vignettes
+   */
+  public Bitmap get(int vignetteIndex, boolean portrait) {
+    vignetteIndex = myMod(vignetteIndex, sVignetteIds.length);
+    return mCache.get((vignetteIndex << 1) | (portrait ? 1 : 0));
+  }
+
+  public void evictAll() {
+    mCache.evictAll();
+  }
+
+  private static final float sFlipBetweenLandscapeAndPortrait[] = {0, 1, 0, 1, 0, 0, 0, 0, 1};
+
+  private Bitmap buildVignette(int vignetteIndex, boolean portrait) {
+    Bitmap vignette = null;
+    try {
+      InputStream stream = mContext.getResources().openRawResource(sVignetteIds[vignetteIndex]);
+      vignette = BitmapFactory.decodeStream(stream);
+      stream.close();
+    } catch (IOException e) {
+      die(e);
+    }
+    if (vignette == null)
+      die("failed to decode vignette #" + vignetteIndex);
+
+    // Vignettes are in landscape mode; if necessary, flip to portrait
+    Matrix matrix = new Matrix();
+    IPoint vSize = BitmapTools.size(vignette);
+    if (portrait) {
+      matrix.setValues(sFlipBetweenLandscapeAndPortrait);
+      vSize = new IPoint(vSize.y, vSize.x);
+    }
+    IPoint targetSize = PhotoInfo.getLogicalMaximumSize(portrait);
+    matrix.postScale(targetSize.x / (float) vSize.x, targetSize.y / (float) vSize.y);
+    Bitmap oriented = Bitmap.createBitmap(vignette, 0, 0, vignette.getWidth(),
+        vignette.getHeight(), matrix, true);
+    BitmapTools.recycleOldBitmapIfDifferent(vignette, oriented);
+    return oriented;
+  }
+
+  private static VignetteCache sSharedInstance;
+
+  private final Context mContext;
+  private final LruCache<Integer, Bitmap> mCache;
+}
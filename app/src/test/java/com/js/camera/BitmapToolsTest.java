@@ -0,0 +1,129 @@
+package com.js.camera;
+
+import com.js.basic.IPoint;
+import com.js.testUtils.MyTestCase;
+
+import java.util.Arrays;
+
+public class BitmapToolsTest extends MyTestCase {
+
+  // Frames used to cover the full input range are made of 256 x 256 blocks of
+  // 2 x 2 pixels, so each block has its own chroma sample
+  private static final int FRAME_SIZE = 512;
+
+  @Override
+  protected void tearDown() {
+    BitmapTools.setConversionMode(BitmapTools.ConversionMode.ARITHMETIC);
+    super.tearDown();
+  }
+
+  /**
+   * Verify that the lookup table encoder agrees with the arithmetic one for every
+   * RGB color, as both luma and chroma samples
+   */
+  public void testEncodeLookupTableMatchesArithmetic() {
+    int[] argb = new int[FRAME_SIZE * FRAME_SIZE];
+    byte[] expected = new byte[(argb.length * 3) / 2];
+    byte[] actual = new byte[expected.length];
+
+    for (int red = 0; red < 256; red++) {
+      // Each block is filled with a single color, with green and blue given by its
+      // position
+      for (int y = 0; y < FRAME_SIZE; y++) {
+        for (int x = 0; x < FRAME_SIZE; x++)
+          argb[y * FRAME_SIZE + x] = 0xff000000 | (red << 16) | ((y >> 1) << 8) | (x >> 1);
+      }
+      encode(BitmapTools.ConversionMode.ARITHMETIC, argb, expected);
+      encode(BitmapTools.ConversionMode.LOOKUP_TABLE, argb, actual);
+      if (!Arrays.equals(expected, actual))
+        fail("encoding mismatch for red " + red + " at " + firstMismatch(expected, actual));
+    }
+  }
+
+  /**
+   * Verify that the lookup table decoder agrees with the arithmetic one for every
+   * combination of Y, U and V
+   */
+  public void testDecodeLookupTableMatchesArithmetic() {
+    IPoint size = new IPoint(FRAME_SIZE, FRAME_SIZE);
+    int frameSize = FRAME_SIZE * FRAME_SIZE;
+    byte[] yuv = new byte[(frameSize * 3) / 2];
+    int[] expected = new int[frameSize];
+    int[] actual = new int[frameSize];
+
+    // Each block's chroma sample has V and U given by its position; its four luma
+    // samples cover four consecutive Y values
+    for (int i = 0; i < frameSize / 4; i++) {
+      yuv[frameSize + 2 * i] = (byte) (i >> 8);
+      yuv[frameSize + 2 * i + 1] = (byte) i;
+    }
+    for (int yBase = 0; yBase < 256; yBase += 4) {
+      for (int y = 0; y < FRAME_SIZE; y++) {
+        for (int x = 0; x < FRAME_SIZE; x++)
+          yuv[y * FRAME_SIZE + x] = (byte) (yBase + ((y & 1) << 1) + (x & 1));
+      }
+      BitmapTools.setConversionMode(BitmapTools.ConversionMode.ARITHMETIC);
+      BitmapTools.decodeYUV420SP(expected, yuv, size);
+      BitmapTools.setConversionMode(BitmapTools.ConversionMode.LOOKUP_TABLE);
+      BitmapTools.decodeYUV420SP(actual, yuv, size);
+      if (!Arrays.equals(expected, actual))
+        fail("decoding mismatch for Y " + yBase + " at " + firstMismatch(expected, actual));
+    }
+  }
+
+  /**
+   * Verify that bleaching ARGB pixels matches (within 1 LSB per channel) converting
+   * them to YUV, scaling the chroma, and converting back
+   */
+  public void testBleachMatchesYUVRoundTrip() {
+    final int width = 320;
+    final int height = 240;
+    IPoint size = new IPoint(width, height);
+    int[] original = new int[width * height];
+    byte[] yuv = new byte[(original.length * 3) / 2];
+    int[] expected = new int[original.length];
+    int[] actual = new int[original.length];
+
+    float[] chromaScales = {0, .25f, .5f, .8f, 1.0f, 1.3f};
+    for (float chromaScale : chromaScales) {
+      for (int i = 0; i < original.length; i++)
+        original[i] = 0xff000000 | random().nextInt();
+
+      BitmapTools.encodeYUV420SP(yuv, original, width, height, false);
+      BitmapTools.scaleYUV420SP(yuv, size, 1.0f, chromaScale, chromaScale);
+      BitmapTools.decodeYUV420SP(expected, yuv, size);
+
+      System.arraycopy(original, 0, actual, 0, original.length);
+      BitmapTools.bleachARGB(actual, width, height, chromaScale);
+
+      for (int i = 0; i < original.length; i++) {
+        for (int shift = 0; shift < 32; shift += 8) {
+          int difference = ((expected[i] >> shift) & 0xff) - ((actual[i] >> shift) & 0xff);
+          if (Math.abs(difference) > 1)
+            fail("bleach mismatch for scale " + chromaScale + " at pixel " + i + ": expected "
+                + Integer.toHexString(expected[i]) + ", got " + Integer.toHexString(actual[i]));
+        }
+      }
+    }
+  }
+
+  private static void encode(BitmapTools.ConversionMode mode, int[] argb, byte[] yuv) {
+    BitmapTools.setConversionMode(mode);
+    BitmapTools.encodeYUV420SP(yuv, argb, FRAME_SIZE, FRAME_SIZE, false);
+  }
+
+  private static int firstMismatch(byte[] a, byte[] b) {
+    for (int i = 0; i < a.length; i++)
+      if (a[i] != b[i])
+        return i;
+    return -1;
+  }
+
+  private static int firstMismatch(int[] a, int[] b) {
+    for (int i = 0; i < a.length; i++)
+      if (a[i] != b[i])
+        return i;
+    return -1;
+  }
+
+}
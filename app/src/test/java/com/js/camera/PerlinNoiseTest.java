@@ -0,0 +1,203 @@
+package com.js.camera;
+
+import com.js.testUtils.MyTestCase;
+
+import java.util.Arrays;
+
+public class PerlinNoiseTest extends MyTestCase {
+
+  private static final int NUM_GRADIENTS = 37;
+
+  // The permutation table's period, in grid cells
+  private static final int PERIOD = 256;
+
+  private static final int TEXTURE_SIZE = 512;
+  private static final int CELL_SIZE = 8;
+
+  private static PerlinNoise buildNoise(PerlinNoise.GradientSelection selection, int seed) {
+    PerlinNoise noise = new PerlinNoise();
+    noise.setSeed(seed);
+    noise.setMaxGradients(NUM_GRADIENTS);
+    noise.setGradientSelection(selection);
+    noise.buildGrid();
+    return noise;
+  }
+
+  /**
+   * Count how many of the vertices in one period of the grid use each gradient
+   */
+  private static int[] gradientCounts(PerlinNoise noise) {
+    int[] counts = new int[NUM_GRADIENTS];
+    for (int y = 0; y < PERIOD; y++)
+      for (int x = 0; x < PERIOD; x++)
+        counts[noise.getGradientIndex(x, y)]++;
+    return counts;
+  }
+
+  /**
+   * Calculate the chi-square statistic of counts against a uniform distribution
+   */
+  private static double chiSquare(int[] counts) {
+    long total = 0;
+    for (int count : counts)
+      total += count;
+    double expected = total / (double) counts.length;
+    double sum = 0;
+    for (int count : counts)
+      sum += (count - expected) * (count - expected) / expected;
+    return sum;
+  }
+
+  private static float[] texture(PerlinNoise.GradientSelection selection, int seed) {
+    float[] values = new float[TEXTURE_SIZE * TEXTURE_SIZE];
+    buildNoise(selection, seed).fill(values, TEXTURE_SIZE, TEXTURE_SIZE, 0, 0,
+        1.0f / CELL_SIZE);
+    return values;
+  }
+
+  private static double mean(float[] values) {
+    double sum = 0;
+    for (float value : values)
+      sum += value;
+    return sum / values.length;
+  }
+
+  private static double standardDeviation(float[] values) {
+    double mean = mean(values);
+    double sum = 0;
+    for (float value : values)
+      sum += (value - mean) * (value - mean);
+    return Math.sqrt(sum / values.length);
+  }
+
+  /**
+   * Each gradient should be used by the hashed vertices with equal probability;
+   * the chi-square critical value for 36 degrees of freedom at p = .001 is 67.99
+   */
+  public void testHashGradientDistribution() {
+    double chiSquare = chiSquare(gradientCounts(buildNoise(
+        PerlinNoise.GradientSelection.HASH, 1)));
+    assertTrue("chi-square " + chiSquare, chiSquare < 67.99);
+  }
+
+  /**
+   * The permutation table's entries should be shared among the gradients as evenly
+   * as possible, so over one period each gradient is used by (256 / 37) or one
+   * more rows' worth of vertices
+   */
+  public void testPermutationTableGradientsBalanced() {
+    int minCount = (PERIOD / NUM_GRADIENTS) * PERIOD;
+    int maxCount = minCount + PERIOD;
+    for (int seed = 1; seed <= 20; seed++) {
+      int[] counts = gradientCounts(buildNoise(
+          PerlinNoise.GradientSelection.PERMUTATION_TABLE, seed));
+      for (int gradient = 0; gradient < NUM_GRADIENTS; gradient++) {
+        int count = counts[gradient];
+        if (count != minCount && count != maxCount)
+          fail("seed " + seed + ", gradient " + gradient + " used " + count + " times");
+      }
+    }
+  }
+
+  /**
+   * Which gradients get the extra entries should vary with the seed, so that no
+   * gradient is favored overall
+   */
+  public void testPermutationTableGradientsUnbiased() {
+    final int numSeeds = 200;
+    int[] favoredCounts = new int[NUM_GRADIENTS];
+    for (int seed = 1; seed <= numSeeds; seed++) {
+      int[] counts = gradientCounts(buildNoise(
+          PerlinNoise.GradientSelection.PERMUTATION_TABLE, seed));
+      int minCount = counts[0];
+      for (int count : counts)
+        minCount = Math.min(minCount, count);
+      for (int gradient = 0; gradient < NUM_GRADIENTS; gradient++)
+        if (counts[gradient] > minCount)
+          favoredCounts[gradient]++;
+    }
+    // Each gradient is favored with probability 34/37
+    for (int gradient = 0; gradient < NUM_GRADIENTS; gradient++) {
+      int count = favoredCounts[gradient];
+      assertTrue("gradient " + gradient + " favored " + count + " times",
+          count > numSeeds * .8 && count < numSeeds);
+    }
+  }
+
+  public void testPermutationTableIsPeriodic() {
+    PerlinNoise noise = buildNoise(PerlinNoise.GradientSelection.PERMUTATION_TABLE, 1);
+    for (int y = -PERIOD; y < 2 * PERIOD; y += 7)
+      for (int x = -PERIOD; x < 2 * PERIOD; x += 5)
+        assertEquals(noise.getGradientIndex(x & (PERIOD - 1), y & (PERIOD - 1)),
+            noise.getGradientIndex(x, y));
+  }
+
+  /**
+   * The noise values of both modes should lie within [-1..1), with a mean near zero
+   * and similar spread
+   */
+  public void testValueRangeAndMean() {
+    double[] deviations = new double[2];
+    PerlinNoise.GradientSelection[] selections = PerlinNoise.GradientSelection.values();
+    for (int i = 0; i < selections.length; i++) {
+      float[] values = texture(selections[i], 1);
+      for (float value : values)
+        if (value < -1 || value >= 1)
+          fail(selections[i] + " value out of range: " + value);
+      double mean = mean(values);
+      assertTrue(selections[i] + " mean " + mean, Math.abs(mean) < .05);
+      deviations[i] = standardDeviation(values);
+    }
+    double ratio = deviations[1] / deviations[0];
+    assertTrue("standard deviations " + Arrays.toString(deviations), ratio > .8 && ratio < 1.25);
+  }
+
+  /**
+   * The two modes choose different gradients, so their textures differ pixel by pixel;
+   * but they should look alike, i.e. have the same distribution of values.  Compare
+   * the distributions by the maximum difference between their cumulative histograms
+   */
+  public void testTableModeVisuallyEquivalentToHash() {
+    final int numBins = 64;
+    double[] hashHistogram = cumulativeHistogram(texture(
+        PerlinNoise.GradientSelection.HASH, 1), numBins);
+    double[] tableHistogram = cumulativeHistogram(texture(
+        PerlinNoise.GradientSelection.PERMUTATION_TABLE, 1), numBins);
+    double maxDifference = 0;
+    for (int i = 0; i < numBins; i++)
+      maxDifference = Math.max(maxDifference, Math.abs(hashHistogram[i] - tableHistogram[i]));
+    assertTrue("max difference " + maxDifference, maxDifference < .05);
+  }
+
+  /**
+   * fill() should produce the same values as noiseAt() in table mode, as it does in
+   * hash mode
+   */
+  public void testTableModeFillMatchesNoiseAt() {
+    PerlinNoise noise = buildNoise(PerlinNoise.GradientSelection.PERMUTATION_TABLE, 1);
+    float[] values = new float[TEXTURE_SIZE * TEXTURE_SIZE];
+    float scale = 1.0f / CELL_SIZE;
+    noise.fill(values, TEXTURE_SIZE, TEXTURE_SIZE, 0, 0, scale);
+    double maxDifference = 0;
+    for (int y = 0; y < TEXTURE_SIZE; y++)
+      for (int x = 0; x < TEXTURE_SIZE; x++)
+        maxDifference = Math.max(maxDifference,
+            Math.abs(values[y * TEXTURE_SIZE + x] - noise.noiseAt(x * scale, y * scale)));
+    assertEqualsFloat(0, maxDifference, 1e-5);
+  }
+
+  private static double[] cumulativeHistogram(float[] values, int numBins) {
+    double[] histogram = new double[numBins];
+    for (float value : values) {
+      int bin = (int) ((value + 1) / 2 * numBins);
+      histogram[Math.max(0, Math.min(numBins - 1, bin))]++;
+    }
+    double total = 0;
+    for (int i = 0; i < numBins; i++) {
+      total += histogram[i];
+      histogram[i] = total / values.length;
+    }
+    return histogram;
+  }
+
+}
@@ -0,0 +1,82 @@
+package com.js.camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for PerlinNoise, generating a 512x512 texture
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class PerlinNoiseBenchmark {
+
+  private static final int TEXTURE_SIZE = 512;
+
+  // Width of a grid cell, in pixels
+  @Param({"8", "64"})
+  public int cellSize;
+
+  @Param({"LINEAR", "CUBIC", "QUINTIC"})
+  public String interpolation;
+
+  @Param({"HASH", "PERMUTATION_TABLE"})
+  public String gradientSelection;
+
+  @Setup
+  public void setup() {
+    mNoise = new PerlinNoise();
+    mNoise.setInterpolation(PerlinNoise.Interpolation.valueOf(interpolation));
+    mNoise.setGradientSelection(PerlinNoise.GradientSelection.valueOf(gradientSelection));
+    mNoise.buildGrid();
+    mValues = new float[TEXTURE_SIZE * TEXTURE_SIZE];
+    mFractalNoise = new FractalNoise(1);
+    mFractalNoise.setInterpolation(PerlinNoise.Interpolation.valueOf(interpolation));
+    mFractalNoise.setGradientSelection(
+        PerlinNoise.GradientSelection.valueOf(gradientSelection));
+  }
+
+  @Benchmark
+  public float[] noiseAt() {
+    float scale = 1.0f / cellSize;
+    int i = 0;
+    for (int y = 0; y < TEXTURE_SIZE; y++) {
+      for (int x = 0; x < TEXTURE_SIZE; x++)
+        mValues[i++] = mNoise.noiseAt(x * scale, y * scale);
+    }
+    return mValues;
+  }
+
+  @Benchmark
+  public float[] fill() {
+    mNoise.fill(mValues, TEXTURE_SIZE, TEXTURE_SIZE, 0, 0, 1.0f / cellSize);
+    return mValues;
+  }
+
+  /**
+   * Four octaves of fractal noise, evaluated in parallel
+   */
+  @Benchmark
+  public float[] fractalFill() {
+    mFractalNoise.fill(mValues, TEXTURE_SIZE, TEXTURE_SIZE, 0, 0, 1.0f / cellSize);
+    return mValues;
+  }
+
+  private PerlinNoise mNoise;
+  private FractalNoise mFractalNoise;
+  private float[] mValues;
+}
@@ -0,0 +1,113 @@
+package com.js.camera;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for reading and writing the metadata of 10000 photos, both as JSON
+ * (the original format) and as a PhotoCatalog
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class PhotoCatalogBenchmark {
+
+  private static final int PHOTO_COUNT = 10000;
+
+  @Setup
+  public void setup() throws IOException {
+    Random r = new Random(1);
+    mPhotos = new ArrayList<PhotoInfo>();
+    mJSONStrings = new ArrayList<String>();
+    for (int i = 0; i < PHOTO_COUNT; i++) {
+      PhotoInfo info = buildPhoto(i + 1, r);
+      mPhotos.add(info);
+      mJSONStrings.add(info.toJSON());
+    }
+
+    mCatalogFile = File.createTempFile("catalog", ".bin");
+    mCatalogFile.delete();
+    writeCatalog(mCatalogFile);
+    mScratchFile = File.createTempFile("scratch", ".bin");
+  }
+
+  @TearDown
+  public void tearDown() {
+    mCatalogFile.delete();
+    mScratchFile.delete();
+  }
+
+  @Benchmark
+  public List<String> serializeJSON() {
+    Random r = new Random(1);
+    List<String> strings = new ArrayList<String>(PHOTO_COUNT);
+    // Build new records, since PhotoInfo caches its JSON
+    for (int i = 0; i < PHOTO_COUNT; i++)
+      strings.add(buildPhoto(i + 1, r).toJSON());
+    return strings;
+  }
+
+  @Benchmark
+  public List<PhotoInfo> parseJSON() throws JSONException {
+    List<PhotoInfo> photos = new ArrayList<PhotoInfo>(PHOTO_COUNT);
+    for (String s : mJSONStrings)
+      photos.add(PhotoInfo.parseJSON(s));
+    return photos;
+  }
+
+  @Benchmark
+  public List<PhotoInfo> openCatalog() throws IOException {
+    PhotoCatalog catalog = new PhotoCatalog(mCatalogFile);
+    List<PhotoInfo> photos = catalog.open();
+    catalog.close();
+    return photos;
+  }
+
+  @Benchmark
+  public File writeCatalog() throws IOException {
+    mScratchFile.delete();
+    writeCatalog(mScratchFile);
+    return mScratchFile;
+  }
+
+  private void writeCatalog(File file) throws IOException {
+    PhotoCatalog catalog = new PhotoCatalog(file);
+    catalog.open();
+    for (PhotoInfo info : mPhotos)
+      catalog.append(info);
+    catalog.close();
+  }
+
+  private static PhotoInfo buildPhoto(int id, Random r) {
+    PhotoInfo info = PhotoInfo.create();
+    info.setId(id);
+    info.setCurrentAgeState(r.nextInt(PhotoInfo.AGE_STATE_MAX));
+    info.setTargetAgeState(info.getCurrentAgeState() + r.nextInt(2));
+    return info;
+  }
+
+  private List<PhotoInfo> mPhotos;
+  private List<String> mJSONStrings;
+  private File mCatalogFile;
+  private File mScratchFile;
+}
@@ -0,0 +1,119 @@
+package com.js.camera;
+
+import com.js.basic.IPoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the BitmapTools pixel kernels, on synthetic frames.
+ * <p/>
+ * Scores are per frame; divide by the frame's size in megapixels (0.3, 1.2, 4.9)
+ * for the cost per megapixel
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class YUVBenchmark {
+
+  @Param({"480x640", "960x1280", "1920x2560"})
+  public String size;
+
+  @Param({"ARITHMETIC", "LOOKUP_TABLE"})
+  public String mode;
+
+  @Param({"false", "true"})
+  public boolean parallel;
+
+  @Setup
+  public void setup() {
+    String[] dimensions = size.split("x");
+    mWidth = Integer.parseInt(dimensions[0]);
+    mHeight = Integer.parseInt(dimensions[1]);
+    mSize = new IPoint(mWidth, mHeight);
+    BitmapTools.setConversionMode(BitmapTools.ConversionMode.valueOf(mode));
+
+    int frameSize = mWidth * mHeight;
+    mArgb = new int[frameSize];
+    Random r = new Random(1);
+    for (int i = 0; i < frameSize; i++)
+      mArgb[i] = 0xff000000 | r.nextInt();
+    mArgbWork = new int[frameSize];
+    mYuv = new byte[(frameSize * 3) / 2];
+    BitmapTools.encodeYUV420SP(mYuv, mArgb, mWidth, mHeight, false);
+    mYuvWork = new byte[mYuv.length];
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    BitmapTools.encodeYUV420SP(mYuvWork, mArgb, mWidth, mHeight, parallel);
+    return mYuvWork;
+  }
+
+  @Benchmark
+  public int[] decode() {
+    if (parallel)
+      return BitmapTools.decodeYUV420SPParallel(mArgbWork, mYuv, mSize);
+    return BitmapTools.decodeYUV420SP(mArgbWork, mYuv, mSize);
+  }
+
+  @Benchmark
+  public byte[] scale() {
+    System.arraycopy(mYuv, 0, mYuvWork, 0, mYuv.length);
+    if (parallel)
+      BitmapTools.scaleYUV420SPParallel(mYuvWork, mSize, 1.0f, .8f, .8f);
+    else
+      BitmapTools.scaleYUV420SP(mYuvWork, mSize, 1.0f, .8f, .8f);
+    return mYuvWork;
+  }
+
+  /**
+   * The encode / scale / decode round trip used to bleach a photo as it ages
+   */
+  @Benchmark
+  public int[] bleachRoundTrip() {
+    encode();
+    if (parallel) {
+      BitmapTools.scaleYUV420SPParallel(mYuvWork, mSize, 1.0f, .8f, .8f);
+      return BitmapTools.decodeYUV420SPParallel(mArgbWork, mYuvWork, mSize);
+    }
+    BitmapTools.scaleYUV420SP(mYuvWork, mSize, 1.0f, .8f, .8f);
+    return BitmapTools.decodeYUV420SP(mArgbWork, mYuvWork, mSize);
+  }
+
+  /**
+   * The fused kernel that replaces the round trip
+   */
+  @Benchmark
+  public int[] bleach() {
+    System.arraycopy(mArgb, 0, mArgbWork, 0, mArgb.length);
+    if (parallel)
+      BitmapTools.bleachARGBParallel(mArgbWork, mWidth, mHeight, .8f);
+    else
+      BitmapTools.bleachARGB(mArgbWork, mWidth, mHeight, .8f);
+    return mArgbWork;
+  }
+
+  private int mWidth;
+  private int mHeight;
+  private IPoint mSize;
+  private int[] mArgb;
+  private int[] mArgbWork;
+  private byte[] mYuv;
+  private byte[] mYuvWork;
+}